@@ -0,0 +1,82 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.isatools.plugins.metabolights.assignments.model.Metabolite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Shared set up for the benchmarks
+ */
+public class BenchmarkSupport {
+
+    private static final String configurationResource = "metabolomics_configuration/configuration_ms.xml";
+
+    /**
+     * A FileUtils that resolves every compound locally, so the benchmarks measure the conversion and not the web services
+     * @param workDirectory, where the MAF configuration is copied to
+     */
+    public static FileUtils newFileUtils(File workDirectory) throws IOException {
+        FileUtils fileUtils = new FileUtils();
+        fileUtils.setConfigurationFile(copyConfiguration(workDirectory).getAbsolutePath());
+        fileUtils.setMetaboliteLookup(new StubMetaboliteLookup());
+        fileUtils.setLookupsPerSecond(0);
+        return fileUtils;
+    }
+
+    /**
+     * The configuration is inside the metabolon-utils jar in the benchmarks jar, it has to be a file to be parsed
+     */
+    public static File copyConfiguration(File workDirectory) throws IOException {
+        File configurationFile = new File(workDirectory, "configuration_ms.xml");
+        try (InputStream configuration = FileUtils.class.getClassLoader().getResourceAsStream(configurationResource)) {
+            if (configuration == null)
+                throw new IOException("No " + configurationResource + " on the classpath");
+            Files.copy(configuration, configurationFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return configurationFile;
+    }
+
+    public static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Resolves every compound to a Metabolite built from its name, without any I/O
+     */
+    public static class StubMetaboliteLookup implements MetaboliteLookup {
+
+        @Override
+        public Metabolite resolve(LookupKey key) {
+            Metabolite met = new Metabolite();
+            met.setIdentifier("CHEBI:" + Math.abs(key.hashCode() % 200000));
+            met.setFormula("C6H12O6");
+            met.setSmiles("OC[C@H]1OC(O)[C@H](O)[C@@H](O)[C@@H]1O");
+            met.setInchi("InChI=1S/C6H12O6/c7-1-2-3(8)4(9)5(10)6(11)12-2/h2-11H,1H2/t2-,3-,4+,5-,6?/m1/s1");
+            return met;
+        }
+    }
+
+    /**
+     * Discards everything, to time workbook.write without the disk
+     */
+    public static class NullOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting the compound names of a synthetic Metabolon sheet, with plain, split and lipid names
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompoundNameParserBenchmark {
+
+    @Param({"0.0", "0.3"})
+    public double splitRatio;
+
+    private String[] compoundNames;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        compoundNames = new String[10000];
+        for (int compound = 0; compound < compoundNames.length; compound++) {
+            if (compound % 100 == 0) //Two lipids, split outside the brackets only
+                compoundNames[compound] = "PC(16:0/18:1)/PE(18:0/20:4) " + compound;
+            else
+                compoundNames[compound] = MetabolonWorkbookGenerator.getCompoundName(random, compound, splitRatio);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10000)
+    public void split(Blackhole blackhole) {
+        for (String compoundName : compoundNames)
+            blackhole.consume(CompoundNameParser.split(compoundName));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10000)
+    public void countSplitPoints(Blackhole blackhole) {
+        for (String compoundName : compoundNames)
+            blackhole.consume(CompoundNameParser.countSplitPoints(compoundName));
+    }
+
+}
@@ -0,0 +1,47 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting the MAF configuration from the registry, compared to parsing the configuration XML every time
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConfigRegistryBenchmark {
+
+    private File workDirectory;
+    private String configurationFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDirectory = Files.createTempDirectory("metabolon-jmh").toFile();
+        configurationFile = BenchmarkSupport.copyConfiguration(workDirectory).getAbsolutePath();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ConfigRegistry.getInstance().clear();
+        BenchmarkSupport.deleteDirectory(workDirectory);
+    }
+
+    @Benchmark
+    public MafConfiguration cachedConfiguration() {
+        return ConfigRegistry.getInstance().getConfiguration(configurationFile);
+    }
+
+    @Benchmark
+    public MafConfiguration parsedConfiguration() {
+        ConfigRegistry.getInstance().clear();
+        return ConfigRegistry.getInstance().getConfiguration(configurationFile);
+    }
+
+}
@@ -0,0 +1,78 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole conversions, from a Metabolon file on disk to a MAF file on disk
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConversionBenchmark {
+
+    @Param({"1000", "10000"})
+    public int rows;
+
+    @Param({"50", "200"})
+    public int samples;
+
+    @Param({"0.3"})
+    public double splitRatio;
+
+    private File workDirectory;
+    private FileUtils fileUtils;
+    private String inputFile;
+    private String csvInputFile;
+    private String outputFile;
+    private String tsvOutputFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDirectory = Files.createTempDirectory("metabolon-jmh").toFile();
+        fileUtils = BenchmarkSupport.newFileUtils(workDirectory);
+        Workbook workbook = MetabolonWorkbookGenerator.generate(rows, samples, splitRatio);
+        inputFile = MetabolonWorkbookGenerator.write(workbook, new File(workDirectory, "synthetic.xlsx")).getAbsolutePath();
+        csvInputFile = MetabolonWorkbookGenerator.writeCsv(workbook, new File(workDirectory, "synthetic.csv")).getAbsolutePath();
+        outputFile = new File(workDirectory, "synthetic_MAF.xlsx").getAbsolutePath();
+        tsvOutputFile = new File(workDirectory, "m_synthetic_maf.tsv").getAbsolutePath();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.deleteDirectory(workDirectory);
+    }
+
+    @Benchmark
+    public void convertExcelFile() throws IOException, InvalidFormatException {
+        fileUtils.convertExcelFile(inputFile, outputFile);
+    }
+
+    @Benchmark
+    public void convertExcelFileStreaming() throws IOException, InvalidFormatException {
+        fileUtils.convertExcelFileStreaming(inputFile, outputFile);
+    }
+
+    @Benchmark
+    public void convertToTsv() throws IOException, InvalidFormatException {
+        fileUtils.convertToTsv(inputFile, tsvOutputFile);
+    }
+
+    /**
+     * The same conversion from the CSV export of the workbook, read without POI
+     */
+    @Benchmark
+    public void convertCsvToTsv() throws IOException, InvalidFormatException {
+        fileUtils.convertToTsv(csvInputFile, tsvOutputFile);
+    }
+
+}
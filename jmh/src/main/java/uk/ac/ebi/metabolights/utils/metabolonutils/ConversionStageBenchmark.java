@@ -0,0 +1,195 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One benchmark per stage of {@link FileUtils#convertExcelFile(String, String)}, on synthetic Metabolon workbooks.
+ * Every stage starts from the output of the stages before it, prepared once per trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConversionStageBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class SyntheticWorkbook {
+
+        @Param({"1000", "10000"})
+        public int rows;
+
+        @Param({"50", "200"})
+        public int samples;
+
+        @Param({"0.0", "0.3"})
+        public double splitRatio;
+
+        File workDirectory;
+        FileUtils fileUtils;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            workDirectory = Files.createTempDirectory("metabolon-jmh").toFile();
+            fileUtils = BenchmarkSupport.newFileUtils(workDirectory);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            BenchmarkSupport.deleteDirectory(workDirectory);
+        }
+
+        Workbook generate() {
+            return MetabolonWorkbookGenerator.generate(rows, samples, splitRatio);
+        }
+    }
+
+    /**
+     * The Metabolon sheet, before annotation
+     */
+    @State(Scope.Benchmark)
+    public static class SourceSheet {
+        Workbook workbook;
+        Sheet metabolonSheet;
+        List<String> compoundNames = new ArrayList<>();
+
+        @Setup(Level.Trial)
+        public void setUp(SyntheticWorkbook syntheticWorkbook) {
+            workbook = syntheticWorkbook.generate();
+            metabolonSheet = workbook.getSheetAt(0);
+            for (Row row : metabolonSheet) {
+                if (row.getRowNum() > 4)
+                    compoundNames.add(row.getCell(1).getStringCellValue());
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void removeAnnotatedSheet() {
+            removeSheetsAfter(workbook, 1);
+        }
+    }
+
+    /**
+     * The Metabolon and annotated sheets, and the table read from them
+     */
+    @State(Scope.Benchmark)
+    public static class AnnotatedSheet {
+        Workbook workbook;
+        Sheet annotatedSheet;
+        MetabolonTable table;
+
+        @Setup(Level.Trial)
+        public void setUp(SyntheticWorkbook syntheticWorkbook) {
+            workbook = syntheticWorkbook.generate();
+            annotatedSheet = syntheticWorkbook.fileUtils.createAnnotatedSheet(workbook, workbook.getSheetAt(0));
+            table = syntheticWorkbook.fileUtils.readAnnotatedSheet(annotatedSheet);
+        }
+
+        @TearDown(Level.Invocation)
+        public void removeMafSheet() {
+            removeSheetsAfter(workbook, 2);
+        }
+    }
+
+    /**
+     * A workbook with the sheets of a conversion, ready to be written
+     */
+    @State(Scope.Benchmark)
+    public static class ConvertedWorkbook {
+        Workbook workbook;
+
+        @Setup(Level.Trial)
+        public void setUp(SyntheticWorkbook syntheticWorkbook) throws IOException {
+            FileUtils fileUtils = syntheticWorkbook.fileUtils;
+            workbook = syntheticWorkbook.generate();
+            MetabolonTable table = fileUtils.readMetabolonSheet(workbook.getSheetAt(0), newMetrics());
+            ConversionContext context = new ConversionContext("synthetic.xlsx", "synthetic_MAF.xlsx");
+            MafSink mafSink = new XlsxMafSink(workbook.createSheet("MAF Data"));
+            mafSink.writeHeader(fileUtils.getMafHeaders(table.getSampleNames(), context));
+            fileUtils.addMetabolonData(mafSink, table, context);
+        }
+    }
+
+    private static ConversionMetrics newMetrics() {
+        return new ConversionMetrics("synthetic.xlsx", "synthetic_MAF.xlsx");
+    }
+
+    private static void removeSheetsAfter(Workbook workbook, int sheetCount) {
+        while (workbook.getNumberOfSheets() > sheetCount)
+            workbook.removeSheetAt(workbook.getNumberOfSheets() - 1);
+    }
+
+    @Benchmark
+    public Sheet annotateMetabolonSheet(SyntheticWorkbook syntheticWorkbook, SourceSheet sourceSheet) {
+        return syntheticWorkbook.fileUtils.createAnnotatedSheet(sourceSheet.workbook, sourceSheet.metabolonSheet);
+    }
+
+    /**
+     * What convertExcelFile does instead of annotating the sheet: read it with the row types and splits applied
+     */
+    @Benchmark
+    public MetabolonTable readMetabolonSheet(SyntheticWorkbook syntheticWorkbook, SourceSheet sourceSheet) {
+        return syntheticWorkbook.fileUtils.readMetabolonSheet(sourceSheet.metabolonSheet, newMetrics());
+    }
+
+    @Benchmark
+    public List<Integer> rowsToDuplicate(SyntheticWorkbook syntheticWorkbook, SourceSheet sourceSheet) {
+        return syntheticWorkbook.fileUtils.rowsToDuplicate(sourceSheet.metabolonSheet);
+    }
+
+    @Benchmark
+    public void extractMetabolites(SyntheticWorkbook syntheticWorkbook, SourceSheet sourceSheet, Blackhole blackhole) {
+        FileUtils fileUtils = syntheticWorkbook.fileUtils;
+        for (String compoundName : sourceSheet.compoundNames) {
+            if (fileUtils.needsSplitting(compoundName))
+                blackhole.consume(fileUtils.extractMetabolites(compoundName));
+        }
+    }
+
+    @Benchmark
+    public MetabolonTable readAnnotatedSheet(SyntheticWorkbook syntheticWorkbook, AnnotatedSheet annotatedSheet) {
+        return syntheticWorkbook.fileUtils.readAnnotatedSheet(annotatedSheet.annotatedSheet);
+    }
+
+    /**
+     * The MAF header row, with the sample columns
+     */
+    @Benchmark
+    public Sheet addSampleHeaderRow(SyntheticWorkbook syntheticWorkbook, AnnotatedSheet annotatedSheet) {
+        FileUtils fileUtils = syntheticWorkbook.fileUtils;
+        ConversionContext context = new ConversionContext("synthetic.xlsx", "synthetic_MAF.xlsx");
+        XlsxMafSink mafSink = new XlsxMafSink(annotatedSheet.workbook.createSheet("MAF Data"));
+        mafSink.writeHeader(fileUtils.getMafHeaders(annotatedSheet.table.getSampleNames(), context));
+        return mafSink.getSheet();
+    }
+
+    /**
+     * Includes the header row, addMetabolonData needs it. Compounds are resolved by a stub lookup
+     */
+    @Benchmark
+    public Sheet addMetabolonData(SyntheticWorkbook syntheticWorkbook, AnnotatedSheet annotatedSheet) throws IOException {
+        FileUtils fileUtils = syntheticWorkbook.fileUtils;
+        ConversionContext context = new ConversionContext("synthetic.xlsx", "synthetic_MAF.xlsx");
+        XlsxMafSink mafSink = new XlsxMafSink(annotatedSheet.workbook.createSheet("MAF Data"));
+        mafSink.writeHeader(fileUtils.getMafHeaders(annotatedSheet.table.getSampleNames(), context));
+        fileUtils.addMetabolonData(mafSink, annotatedSheet.table, context);
+        return mafSink.getSheet();
+    }
+
+    @Benchmark
+    public void writeWorkbook(ConvertedWorkbook convertedWorkbook) throws IOException {
+        convertedWorkbook.workbook.write(new BenchmarkSupport.NullOutputStream());
+    }
+
+}
@@ -0,0 +1,84 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building and writing the MAF rows of resolved compounds with 1 to 16 threads, to see how
+ * {@link MafRowMaterializer} scales with the number of cores. Run it on a machine with 8 or more.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MafRowBenchmark {
+
+    @Param({"10000"})
+    public int rows;
+
+    @Param({"100", "500"})
+    public int samples;
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int parallelism;
+
+    private File workDirectory;
+    private FileUtils fileUtils;
+    private MetabolonTable table;
+    private ConversionContext context;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDirectory = Files.createTempDirectory("metabolon-jmh").toFile();
+        fileUtils = BenchmarkSupport.newFileUtils(workDirectory);
+        fileUtils.setMafParallelism(parallelism);
+
+        context = new ConversionContext("synthetic.xlsx", "m_synthetic_maf.tsv");
+        table = fileUtils.readMetabolonSheet(MetabolonWorkbookGenerator.generate(rows, samples, 0.3).getSheetAt(0), context.getMetrics());
+        try (MafSink mafSink = newTsvSink()) { //Resolves the compounds once, with the stub lookup
+            mafSink.writeHeader(fileUtils.getMafHeaders(table.getSampleNames(), context));
+            fileUtils.addMetabolonData(mafSink, table, context);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fileUtils.setMafParallelism(1); //Stops the pool
+        BenchmarkSupport.deleteDirectory(workDirectory);
+    }
+
+    private static TsvMafSink newTsvSink() {
+        return new TsvMafSink(new OutputStreamWriter(new BenchmarkSupport.NullOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void writeTsvRows() throws IOException {
+        try (MafSink mafSink = newTsvSink()) {
+            fileUtils.writeMafRows(mafSink, table, context);
+        }
+    }
+
+    /**
+     * Only the rows are built in parallel here, POI cells are created by one thread
+     */
+    @Benchmark
+    public void writeXlsxRows() throws IOException {
+        SXSSFWorkbook workbook = new SXSSFWorkbook(100);
+        try {
+            fileUtils.writeMafRows(new XlsxMafSink(workbook.createSheet("MAF Data")), table, context);
+        } finally {
+            workbook.dispose();
+            workbook.close();
+        }
+    }
+
+}
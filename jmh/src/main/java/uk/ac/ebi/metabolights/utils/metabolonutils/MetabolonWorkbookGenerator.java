@@ -0,0 +1,138 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Creates workbooks with the same layout as a Metabolon peak area table: five header rows (CLIENT_IDENTIFIER,
+ * PARENT_SAMPLE_ID, SAMPLE_NAME, STARTING_VOLUME, HEADERS), then one DATA row per compound with the compound
+ * columns in 0-12 and the samples from column 13.
+ * The content only depends on the parameters, so every benchmark run converts the same workbook.
+ */
+public class MetabolonWorkbookGenerator {
+
+    private static final String[] compoundHeaders = { "PATHWAY_SORTORDER", "BIOCHEMICAL", "SUPER_PATHWAY", "SUB_PATHWAY",
+            "COMP_ID", "PLATFORM", "CHEMICAL_ID", "RI", "MASS", "PUBCHEM", "CAS", "KEGG", "HMDB" };
+    private static final double missingRatio = 0.05; //Share of "." sample values
+    private static final double lipidRatio = 0.05;   //Share of lipid names with a "/" that are not split
+
+    /**
+     * @param rows, the number of DATA rows
+     * @param samples, the number of sample columns
+     * @param splitRatio, the share of compound names that report two compounds ("compound A/compound B")
+     * @return Workbook, with one Metabolon sheet
+     */
+    public static Workbook generate(int rows, int samples, double splitRatio) {
+        Random random = new Random(42);
+        Workbook workbook = new XSSFWorkbook();
+        Sheet sheet = workbook.createSheet("OrigScale");
+        int firstSample = compoundHeaders.length;
+
+        Row clientIdRow = sheet.createRow(0);
+        Row parentSampleIdRow = sheet.createRow(1);
+        Row sampleNameRow = sheet.createRow(2);
+        Row startingVolumeRow = sheet.createRow(3);
+        Row headersRow = sheet.createRow(4);
+        clientIdRow.createCell(firstSample - 1).setCellValue("CLIENT_IDENTIFIER");
+        parentSampleIdRow.createCell(firstSample - 1).setCellValue("PARENT_SAMPLE_ID");
+        sampleNameRow.createCell(firstSample - 1).setCellValue("SAMPLE_NAME");
+        startingVolumeRow.createCell(firstSample - 1).setCellValue("STARTING_VOLUME");
+
+        for (int i = 0; i < compoundHeaders.length; i++)
+            headersRow.createCell(i).setCellValue(compoundHeaders[i]);
+
+        for (int sample = 0; sample < samples; sample++) {
+            clientIdRow.createCell(firstSample + sample).setCellValue("CLIENT-" + sample);
+            parentSampleIdRow.createCell(firstSample + sample).setCellValue("PSID" + (100000 + sample));
+            sampleNameRow.createCell(firstSample + sample).setCellValue("SAMPLE_" + sample);
+            startingVolumeRow.createCell(firstSample + sample).setCellValue(100.0);
+            headersRow.createCell(firstSample + sample).setCellValue("Group " + (sample % 4));
+        }
+
+        for (int compound = 0; compound < rows; compound++) {
+            Row row = sheet.createRow(5 + compound);
+            row.createCell(0).setCellValue(compound + 1);
+            row.createCell(1).setCellValue(getCompoundName(random, compound, splitRatio));
+            row.createCell(2).setCellValue("Lipid");
+            row.createCell(3).setCellValue("Fatty Acid Metabolism");
+            row.createCell(4).setCellValue(30000 + compound);
+            row.createCell(5).setCellValue(compound % 2 == 0 ? "LC/MS Pos Early" : "LC/MS Neg");
+            row.createCell(6).setCellValue(100000000 + compound);
+            row.createCell(7).setCellValue(1000 + random.nextInt(5000));
+            row.createCell(8).setCellValue(50 + random.nextDouble() * 900);
+            if (compound % 3 != 0)
+                row.createCell(11).setCellValue(String.format("C%05d", compound % 100000));
+            if (compound % 4 != 0)
+                row.createCell(12).setCellValue(String.format("HMDB%07d", compound % 10000000));
+
+            for (int sample = 0; sample < samples; sample++) {
+                if (random.nextDouble() < missingRatio)
+                    row.createCell(firstSample + sample).setCellValue(".");
+                else
+                    row.createCell(firstSample + sample).setCellValue(random.nextDouble() * 1000000);
+            }
+        }
+
+        return workbook;
+    }
+
+    static String getCompoundName(Random random, int compound, double splitRatio) {
+        double draw = random.nextDouble();
+        if (draw < splitRatio)
+            return "compound " + compound + "a/compound " + compound + "b";
+        if (draw < splitRatio + lipidRatio)
+            return "1-palmitoyl-2-oleoyl-GPC (16:0/18:1) " + compound;
+        return "compound " + compound + (compound % 10 == 0 ? "*" : "");
+    }
+
+    /**
+     * Write a generated workbook to a file, for the benchmarks that read from disk
+     * @param workbook
+     * @param file, the .xlsx file to create
+     * @return File, the same file
+     */
+    public static File write(Workbook workbook, File file) throws IOException {
+        try (FileOutputStream fileOut = new FileOutputStream(file)) {
+            workbook.write(fileOut);
+        }
+        return file;
+    }
+
+    /**
+     * Write the first sheet of a generated workbook as a comma separated Metabolon export
+     * @param workbook
+     * @param file, the .csv file to create
+     * @return File, the same file
+     */
+    public static File writeCsv(Workbook workbook, File file) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            for (Row row : workbook.getSheetAt(0)) {
+                for (int i = 0; i < row.getLastCellNum(); i++) {
+                    if (i > 0)
+                        writer.write(',');
+                    Cell cell = row.getCell(i);
+                    if (cell == null)
+                        continue;
+                    if (cell.getCellTypeEnum() == CellType.NUMERIC) {
+                        writer.write(Double.toString(cell.getNumericCellValue()));
+                    } else {
+                        String value = cell.getStringCellValue();
+                        boolean quote = value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0;
+                        writer.write(quote ? '"' + value.replace("\"", "\"\"") + '"' : value);
+                    }
+                }
+                writer.write("\r\n");
+            }
+        }
+        return file;
+    }
+
+}
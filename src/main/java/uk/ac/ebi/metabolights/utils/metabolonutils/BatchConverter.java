@@ -0,0 +1,211 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Converts many Metabolon workbooks in parallel with one shared FileUtils. Every file gets its own output file, and
+ * a file that fails to convert does not stop the others.
+ */
+public class BatchConverter implements Closeable {
+
+    private final FileUtils fileUtils;
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private OutputFormat outputFormat = OutputFormat.WORKBOOK;
+    private boolean incremental = false;
+    private List<String> assayConfigurations = Collections.emptyList();
+
+    public enum OutputFormat {
+        WORKBOOK("_MAF.xlsx"),   //The Metabolon and MAF sheets, see FileUtils.convertExcelFile
+        MAF_XLSX("_MAF.xlsx"),   //Only the MAF sheet, see FileUtils.convertExcelFileStreaming
+        TSV("_maf.tsv"),         //MAF as tab separated text, see FileUtils.convertToTsv
+        TSV_GZ("_maf.tsv.gz");
+
+        private final String suffix;
+
+        OutputFormat(String suffix) {
+            this.suffix = suffix;
+        }
+    }
+
+    /**
+     * @param fileUtils, the configured converter, shared by all the files
+     * @param threads, the number of files converted at the same time
+     */
+    public BatchConverter(FileUtils fileUtils, int threads) {
+        this(fileUtils, Executors.newFixedThreadPool(Math.max(1, threads)), true);
+    }
+
+    /**
+     * @param fileUtils, the configured converter, shared by all the files
+     * @param executor, runs the conversions. Not shut down by this class
+     */
+    public BatchConverter(FileUtils fileUtils, ExecutorService executor) {
+        this(fileUtils, executor, false);
+    }
+
+    private BatchConverter(FileUtils fileUtils, ExecutorService executor, boolean ownExecutor) {
+        this.fileUtils = fileUtils;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+    }
+
+    public OutputFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    public void setOutputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @param incremental, update the TSV MAF files of a previous run, see {@link FileUtils#convertToTsvIncremental(String, String)}.
+     * Only for the TSV output formats
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public List<String> getAssayConfigurations() {
+        return assayConfigurations;
+    }
+
+    /**
+     * @param assayConfigurations, the ISA assay configurations (e.g. MS and NMR) to write one MAF for each, from a
+     * single read of the Metabolon file, see {@link FileUtils#convertToTsv(String, Map)}. Only for the TSV output
+     * formats, and not incremental. Empty for the configuration of the FileUtils
+     */
+    public void setAssayConfigurations(List<String> assayConfigurations) {
+        this.assayConfigurations = new ArrayList<>(assayConfigurations);
+    }
+
+    public boolean isStreaming() {
+        return outputFormat != OutputFormat.WORKBOOK;
+    }
+
+    /**
+     * @param streaming, use {@link FileUtils#convertExcelFileStreaming(String, String)}, only the MAF sheet is written
+     */
+    public void setStreaming(boolean streaming) {
+        this.outputFormat = streaming ? OutputFormat.MAF_XLSX : OutputFormat.WORKBOOK;
+    }
+
+    /**
+     * Convert all the workbooks (.xls and .xlsx) and CSV exports in a directory. Tab separated exports are only
+     * converted when given one by one, a directory can have TSV MAF and cache files
+     * @param inputDirectory
+     * @param outputDirectory, where the MAF files are written
+     * @return the results, in file name order
+     */
+    public List<ConversionResult> convertDirectory(File inputDirectory, File outputDirectory) {
+        File[] inputFiles = inputDirectory.listFiles((dir, name) ->
+                !name.startsWith("~$") && (name.toLowerCase().endsWith(".xlsx") || name.toLowerCase().endsWith(".xls")
+                        || name.toLowerCase().endsWith(".csv")));
+
+        if (inputFiles == null)
+            return Collections.emptyList();
+
+        Arrays.sort(inputFiles);
+        return convertAll(Arrays.asList(inputFiles), outputDirectory);
+    }
+
+    /**
+     * @param inputFiles, the Metabolon workbooks
+     * @param outputDirectory, where the MAF files are written
+     * @return the results, in the same order as the input files
+     */
+    public List<ConversionResult> convertAll(List<File> inputFiles, File outputDirectory) {
+        outputDirectory.mkdirs();
+
+        List<Future<ConversionResult>> futures = new ArrayList<>();
+        for (File inputFile : inputFiles)
+            futures.add(executor.submit(() -> convert(inputFile, getOutputFile(inputFile, outputDirectory, outputFormat))));
+
+        List<ConversionResult> results = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while converting files", e);
+            } catch (ExecutionException e) { //Errors, conversion exceptions are already in the result
+                results.add(new ConversionResult(inputFiles.get(i).getPath(), null, new Exception(e.getCause()), 0));
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Convert one file in the calling thread, with the output format of this converter
+     */
+    ConversionResult convert(File inputFile, File outputFile) {
+        long start = System.currentTimeMillis();
+        String outputPath = outputFile.getPath();
+        try {
+            switch (outputFormat) {
+                case WORKBOOK:
+                    fileUtils.convertExcelFile(inputFile.getPath(), outputFile.getPath());
+                    break;
+                case MAF_XLSX:
+                    fileUtils.convertExcelFileStreaming(inputFile.getPath(), outputFile.getPath());
+                    break;
+                default: //TSV, gzipped or not depending on the file name
+                    if (!assayConfigurations.isEmpty()) {
+                        Map<String, String> outputFiles = new LinkedHashMap<>();
+                        for (String assayConfiguration : assayConfigurations)
+                            outputFiles.put(assayConfiguration, getAssayOutputFile(outputFile, assayConfiguration).getPath());
+                        outputPath = String.join(", ", outputFiles.values());
+                        fileUtils.convertToTsv(inputFile.getPath(), outputFiles);
+                    } else if (incremental)
+                        fileUtils.convertToTsvIncremental(inputFile.getPath(), outputFile.getPath());
+                    else
+                        fileUtils.convertToTsv(inputFile.getPath(), outputFile.getPath());
+            }
+
+            return new ConversionResult(inputFile.getPath(), outputPath, null, System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            Log.warn("Could not convert "+inputFile+": "+e);
+            return new ConversionResult(inputFile.getPath(), outputPath, e, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * @return e.g. MetabolonPeakAreaTable.xlsx -> outputDirectory/MetabolonPeakAreaTable_MAF.xlsx, or
+     * MetabolonPeakAreaTable_maf.tsv for TSV
+     */
+    static File getOutputFile(File inputFile, File outputDirectory, OutputFormat outputFormat) {
+        String name = inputFile.getName();
+        int extension = name.lastIndexOf('.');
+        return new File(outputDirectory, (extension > 0 ? name.substring(0, extension) : name) + outputFormat.suffix);
+    }
+
+    /**
+     * @return e.g. MetabolonPeakAreaTable_maf.tsv and configuration_nmr.xml -> MetabolonPeakAreaTable_nmr_maf.tsv
+     */
+    static File getAssayOutputFile(File outputFile, String assayConfiguration) {
+        String assay = new File(assayConfiguration).getName();
+        if (assay.toLowerCase().endsWith(".xml"))
+            assay = assay.substring(0, assay.length() - 4);
+        if (assay.startsWith("configuration_"))
+            assay = assay.substring("configuration_".length());
+
+        String name = outputFile.getName();
+        int suffix = name.toLowerCase().lastIndexOf("_maf.");
+        return new File(outputFile.getParentFile(), suffix > 0 ?
+                name.substring(0, suffix) + "_" + assay + name.substring(suffix) : assay + "_" + name);
+    }
+
+    @Override
+    public void close() {
+        if (ownExecutor)
+            executor.shutdown();
+    }
+}
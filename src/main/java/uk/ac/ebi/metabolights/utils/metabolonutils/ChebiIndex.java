@@ -0,0 +1,214 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.isatools.plugins.metabolights.assignments.model.Metabolite;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Read only, memory-mapped index of ChEBI compounds, built by {@link ChebiIndexBuilder} from the ChEBI flat files.
+ * Used by SearchUtils to resolve compounds without calling the ChEBI and MetaboLights web services.
+ *
+ * File layout (big-endian, all offsets are absolute positions in the file):
+ * <pre>
+ * header   int magic, int version, int recordCount, int recordIndexOffset,
+ *          then for the ACCESSION, CHEBI_NAME and ALL_NAMES tables: int entryCount, int entriesOffset
+ * records  per compound: identifier, formula, smiles, inchi as strings
+ * record index  int offset of each record
+ * tables   per table: the keys as strings, then entryCount pairs of (int key offset, int record number),
+ *          sorted on the unsigned UTF-8 bytes of the key
+ * string   int length (-1 for null), followed by the UTF-8 bytes
+ * </pre>
+ * Only absolute reads are used on the mapped buffer, so one index can be shared by all the lookup threads.
+ */
+public class ChebiIndex implements Closeable {
+
+    static final int MAGIC = 0x43484958; //"CHIX"
+    static final int VERSION = 1;
+    static final int ACCESSION_TABLE = 0;
+    static final int CHEBI_NAME_TABLE = 1;
+    static final int ALL_NAMES_TABLE = 2;
+    static final int TABLE_COUNT = 3;
+    static final int HEADER_SIZE = 16 + TABLE_COUNT * 8;
+
+    private final RandomAccessFile indexFile;
+    private final MappedByteBuffer buffer;
+    private final int recordCount;
+    private final int recordIndexOffset;
+    private final int[] entryCounts = new int[TABLE_COUNT];
+    private final int[] entriesOffsets = new int[TABLE_COUNT];
+
+    private ChebiIndex(RandomAccessFile indexFile, MappedByteBuffer buffer) throws IOException {
+        this.indexFile = indexFile;
+        this.buffer = buffer;
+
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException("Not a ChEBI index, or built by another version");
+
+        recordCount = buffer.getInt(8);
+        recordIndexOffset = buffer.getInt(12);
+        for (int table = 0; table < TABLE_COUNT; table++) {
+            entryCounts[table] = buffer.getInt(16 + table * 8);
+            entriesOffsets[table] = buffer.getInt(20 + table * 8);
+        }
+    }
+
+    /**
+     * Map an index file. Only the header is read, the rest is paged in on demand
+     * @param file, built by ChebiIndexBuilder
+     */
+    public static ChebiIndex open(File file) throws IOException {
+        RandomAccessFile indexFile = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = indexFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, indexFile.length());
+            return new ChebiIndex(indexFile, buffer);
+        } catch (IOException e) {
+            indexFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Same search order as SearchUtils: the external id first, then the ChEBI name, then all names and synonyms
+     * @param key, the external id and cleaned name of the compound
+     * @return Metabolite, null if the compound is not in the index
+     */
+    public Metabolite resolve(LookupKey key) {
+        Metabolite met = null;
+
+        if (key.getDbId() != null)
+            met = findByAccession(key.getDbId());
+
+        if (met == null && key.getName() != null)
+            met = findByName(key.getName());
+
+        return met;
+    }
+
+    /**
+     * @param accession, HMDB or KEGG accession
+     * @return Metabolite, null if not found
+     */
+    public Metabolite findByAccession(String accession) {
+        String normalisedAccession = normaliseAccession(accession);
+        return normalisedAccession != null ? getRecord(find(ACCESSION_TABLE, normalisedAccession)) : null;
+    }
+
+    /**
+     * @param name, compound name
+     * @return Metabolite, with this ChEBI name, or else this name or synonym. Null if not found
+     */
+    public Metabolite findByName(String name) {
+        String normalisedName = LookupKey.normaliseName(name);
+        if (normalisedName == null)
+            return null;
+
+        int record = find(CHEBI_NAME_TABLE, normalisedName);
+        if (record < 0)
+            record = find(ALL_NAMES_TABLE, normalisedName);
+
+        return getRecord(record);
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * HMDB accessions are stored in the current 7 digit form (HMDB0000122), so HMDB00122 finds the same compound
+     * @param accession
+     * @return the accession in upper case, null if empty
+     */
+    static String normaliseAccession(String accession) {
+        String normalisedAccession = LookupKey.normaliseDbId(accession);
+        if (normalisedAccession == null)
+            return null;
+
+        if (normalisedAccession.startsWith("HMDB")) {
+            String digits = normalisedAccession.substring(4);
+            if (!digits.isEmpty() && digits.length() < 7 && digits.chars().allMatch(Character::isDigit))
+                normalisedAccession = "HMDB" + String.format(Locale.ROOT, "%07d", Integer.parseInt(digits));
+        }
+
+        return normalisedAccession;
+    }
+
+    /**
+     * Binary search of a table, without creating any objects
+     * @return the record number, -1 if not found
+     */
+    private int find(int table, String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = entryCounts[table] - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = entriesOffsets[table] + mid * 8;
+            int compare = compareKey(buffer.getInt(entry), keyBytes);
+
+            if (compare < 0)
+                low = mid + 1;
+            else if (compare > 0)
+                high = mid - 1;
+            else
+                return buffer.getInt(entry + 4);
+        }
+
+        return -1;
+    }
+
+    private int compareKey(int keyOffset, byte[] keyBytes) {
+        int length = buffer.getInt(keyOffset);
+        int start = keyOffset + 4;
+
+        for (int i = 0; i < Math.min(length, keyBytes.length); i++) {
+            int compare = (buffer.get(start + i) & 0xff) - (keyBytes[i] & 0xff);
+            if (compare != 0)
+                return compare;
+        }
+
+        return length - keyBytes.length;
+    }
+
+    private Metabolite getRecord(int record) {
+        if (record < 0 || record >= recordCount)
+            return null;
+
+        int[] position = { buffer.getInt(recordIndexOffset + record * 4) };
+        Metabolite met = new Metabolite();
+        met.setIdentifier(readString(position));
+        met.setFormula(readString(position));
+        met.setSmiles(readString(position));
+        met.setInchi(readString(position));
+        return met;
+    }
+
+    private String readString(int[] position) {
+        int length = buffer.getInt(position[0]);
+        position[0] += 4;
+        if (length < 0)
+            return null;
+
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate(); //Own position, so reads are thread safe
+        source.position(position[0]);
+        source.get(bytes);
+        position[0] += length;
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        indexFile.close(); //The mapping stays valid until the buffer is garbage collected
+    }
+
+}
@@ -0,0 +1,252 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Builds a {@link ChebiIndex} from the ChEBI flat file exports (ftp.ebi.ac.uk/pub/databases/chebi/Flat_file_tab_delimited):
+ * compounds.tsv, names.tsv, database_accession.tsv, chemical_data.tsv and structures.tsv. The .gz files can be used as
+ * they are downloaded. Columns are found by their header name.
+ *
+ * Usage: ChebiIndexBuilder &lt;flat file directory&gt; &lt;index file&gt;
+ */
+public class ChebiIndexBuilder {
+
+    private final Map<Integer, String[]> compounds = new TreeMap<>();  //ChEBI number -> identifier, formula, smiles, inchi
+    private final List<Map<String, Integer>> tables = new ArrayList<>();
+
+    public ChebiIndexBuilder() {
+        for (int table = 0; table < ChebiIndex.TABLE_COUNT; table++)
+            tables.add(new HashMap<>());
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            Log.warn("Usage: ChebiIndexBuilder <ChEBI flat file directory> <index file>");
+            return;
+        }
+
+        try {
+            ChebiIndexBuilder builder = new ChebiIndexBuilder();
+            builder.read(new File(args[0]));
+            builder.write(new File(args[1]));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Read the flat files
+     * @param flatFileDirectory, the directory with the ChEBI flat files
+     */
+    public void read(File flatFileDirectory) throws IOException {
+        readTable(flatFileDirectory, "compounds.tsv", columns -> {
+            Integer compound = parseId(columns.get("ID"));
+            if (compound == null || columns.get("NAME") == null)
+                return;
+            compounds.computeIfAbsent(compound, id -> new String[] { "CHEBI:" + id, null, null, null });
+            addKey(ChebiIndex.CHEBI_NAME_TABLE, LookupKey.normaliseName(columns.get("NAME")), compound);
+            addKey(ChebiIndex.ALL_NAMES_TABLE, LookupKey.normaliseName(columns.get("NAME")), compound);
+        });
+
+        readTable(flatFileDirectory, "names.tsv", columns ->
+                addKey(ChebiIndex.ALL_NAMES_TABLE, LookupKey.normaliseName(columns.get("NAME")), getCompound(columns)));
+
+        readTable(flatFileDirectory, "database_accession.tsv", columns ->
+                addKey(ChebiIndex.ACCESSION_TABLE, ChebiIndex.normaliseAccession(columns.get("ACCESSION_NUMBER")), getCompound(columns)));
+
+        readTable(flatFileDirectory, "chemical_data.tsv", columns -> {
+            if ("FORMULA".equalsIgnoreCase(columns.get("TYPE")))
+                setValue(getCompound(columns), 1, columns.get("CHEMICAL_DATA"));
+        });
+
+        readTable(flatFileDirectory, "structures.tsv", columns -> {
+            if ("SMILES".equalsIgnoreCase(columns.get("TYPE")))
+                setValue(getCompound(columns), 2, columns.get("STRUCTURE"));
+            else if ("InChI".equalsIgnoreCase(columns.get("TYPE")))
+                setValue(getCompound(columns), 3, columns.get("STRUCTURE"));
+        });
+
+        Log.info("Read "+compounds.size()+" ChEBI compounds, "+tables.get(ChebiIndex.ACCESSION_TABLE).size()
+                +" accessions, "+tables.get(ChebiIndex.ALL_NAMES_TABLE).size()+" names and synonyms");
+    }
+
+    private Integer getCompound(Map<String, String> columns) {
+        Integer compound = parseId(columns.get("COMPOUND_ID"));
+        return compound != null && compounds.containsKey(compound) ? compound : null;
+    }
+
+    private static Integer parseId(String id) {
+        if (id == null)
+            return null;
+        try {
+            return Integer.valueOf(id.replace("CHEBI:", "").trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The same key can point to several compounds, the lowest ChEBI id wins so the index is the same on every build
+     */
+    private void addKey(int table, String key, Integer compound) {
+        if (key != null && compound != null)
+            tables.get(table).merge(key, compound, Math::min);
+    }
+
+    private void setValue(Integer compound, int field, String value) {
+        if (compound == null || value == null || value.isEmpty())
+            return;
+        String[] values = compounds.get(compound);
+        if (values[field] == null) //Keep the first (default) structure
+            values[field] = value;
+    }
+
+    private void readTable(File directory, String fileName, Consumer<Map<String, String>> rowConsumer) throws IOException {
+        File file = new File(directory, fileName);
+        InputStream inputStream;
+        if (file.exists()) {
+            inputStream = new FileInputStream(file);
+        } else if (new File(directory, fileName + ".gz").exists()) {
+            inputStream = new GZIPInputStream(new FileInputStream(new File(directory, fileName + ".gz")));
+        } else {
+            Log.warn("No "+fileName+" in "+directory+", skipping");
+            return;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if (line == null)
+                return;
+            String[] header = line.split("\t", -1);
+
+            Map<String, String> columns = new HashMap<>();
+            while ((line = reader.readLine()) != null) {
+                String[] values = line.split("\t", -1);
+                if (values.length != header.length)
+                    continue; //e.g. multi-line mol structures
+
+                columns.clear();
+                for (int i = 0; i < header.length; i++)
+                    columns.put(header[i].trim().toUpperCase(Locale.ROOT), values[i].isEmpty() || values[i].equals("null") ? null : values[i]);
+                rowConsumer.accept(columns);
+            }
+        }
+    }
+
+    /**
+     * Write the index file, see {@link ChebiIndex} for the layout
+     * @param indexFile
+     */
+    public void write(File indexFile) throws IOException {
+        Map<Integer, Integer> recordNumbers = new HashMap<>();
+
+        try (CountingOutputStream output = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+            DataOutputStream data = new DataOutputStream(output);
+            data.write(new byte[ChebiIndex.HEADER_SIZE]); //Written at the end, when the offsets are known
+
+            //Records
+            int[] recordOffsets = new int[compounds.size()];
+            int recordNumber = 0;
+            for (Map.Entry<Integer, String[]> compound : compounds.entrySet()) {
+                recordNumbers.put(compound.getKey(), recordNumber);
+                recordOffsets[recordNumber++] = output.getPosition();
+                for (String value : compound.getValue())
+                    writeString(data, value);
+            }
+
+            int recordIndexOffset = output.getPosition();
+            for (int recordOffset : recordOffsets)
+                data.writeInt(recordOffset);
+
+            //Tables, sorted on the bytes so the index can compare without decoding
+            int[] entryCounts = new int[ChebiIndex.TABLE_COUNT];
+            int[] entriesOffsets = new int[ChebiIndex.TABLE_COUNT];
+            for (int table = 0; table < ChebiIndex.TABLE_COUNT; table++) {
+                List<Map.Entry<byte[], Integer>> entries = new ArrayList<>();
+                tables.get(table).forEach((key, compound) ->
+                        entries.add(new AbstractMap.SimpleEntry<>(key.getBytes(StandardCharsets.UTF_8), recordNumbers.get(compound))));
+                entries.sort((a, b) -> compareBytes(a.getKey(), b.getKey()));
+
+                int[] keyOffsets = new int[entries.size()];
+                for (int i = 0; i < entries.size(); i++) {
+                    keyOffsets[i] = output.getPosition();
+                    data.writeInt(entries.get(i).getKey().length);
+                    data.write(entries.get(i).getKey());
+                }
+
+                entryCounts[table] = entries.size();
+                entriesOffsets[table] = output.getPosition();
+                for (int i = 0; i < entries.size(); i++) {
+                    data.writeInt(keyOffsets[i]);
+                    data.writeInt(entries.get(i).getValue());
+                }
+            }
+            data.flush();
+
+            try (RandomAccessFile header = new RandomAccessFile(indexFile, "rw")) {
+                header.writeInt(ChebiIndex.MAGIC);
+                header.writeInt(ChebiIndex.VERSION);
+                header.writeInt(compounds.size());
+                header.writeInt(recordIndexOffset);
+                for (int table = 0; table < ChebiIndex.TABLE_COUNT; table++) {
+                    header.writeInt(entryCounts[table]);
+                    header.writeInt(entriesOffsets[table]);
+                }
+            }
+        }
+
+        Log.info("Wrote the ChEBI index to "+indexFile+" ("+indexFile.length()+" bytes)");
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        if (value == null) {
+            data.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int compare = (a[i] & 0xff) - (b[i] & 0xff);
+            if (compare != 0)
+                return compare;
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Keeps track of the position in the file, the index uses int offsets so it has to stay under 2GB
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long position = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            position++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            position += len;
+        }
+
+        int getPosition() throws IOException {
+            if (position > Integer.MAX_VALUE)
+                throw new IOException("The ChEBI index is too large");
+            return (int) position;
+        }
+    }
+}
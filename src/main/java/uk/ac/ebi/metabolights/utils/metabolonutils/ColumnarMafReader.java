@@ -0,0 +1,160 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Reads a .mafc file written by {@link ColumnarMafSink}. The file is memory-mapped, the columns are views on the
+ * mapping: nothing is copied or parsed until a value is asked for, so even a large study opens straight away.
+ */
+public class ColumnarMafReader implements Closeable {
+
+    private final File mafcFile;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int rowCount;
+    private final List<String> stringColumnNames = new ArrayList<>();
+    private final List<String> sampleColumnNames = new ArrayList<>();
+    private final long[] columnOffsets;
+
+    public ColumnarMafReader(File mafcFile) throws IOException {
+        this.mafcFile = mafcFile;
+        this.channel = FileChannel.open(mafcFile.toPath(), StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(mafcFile + " is larger than 2 GB");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            byte[] magic = new byte[ColumnarMafSink.MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, ColumnarMafSink.MAGIC) || buffer.getInt() != ColumnarMafSink.VERSION)
+                throw new IOException(mafcFile + " is not a columnar MAF file");
+
+            rowCount = buffer.getInt();
+            int stringColumnCount = buffer.getInt();
+            int sampleColumnCount = buffer.getInt();
+            columnOffsets = new long[stringColumnCount + sampleColumnCount];
+            for (int i = 0; i < columnOffsets.length; i++)
+                columnOffsets[i] = buffer.getLong();
+            for (int i = 0; i < columnOffsets.length; i++) {
+                byte[] name = new byte[buffer.getInt()];
+                buffer.get(name);
+                (i < stringColumnCount ? stringColumnNames : sampleColumnNames).add(new String(name, StandardCharsets.UTF_8));
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException ? (IOException) e : new IOException("Could not read " + mafcFile, e);
+        }
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return the MAF columns before the samples, e.g. database_identifier and metabolite_identification
+     */
+    public List<String> getStringColumnNames() {
+        return Collections.unmodifiableList(stringColumnNames);
+    }
+
+    public List<String> getSampleNames() {
+        return Collections.unmodifiableList(sampleColumnNames);
+    }
+
+    /**
+     * @param column, the index in {@link #getStringColumnNames()}
+     * @return the dictionary code of each row, -1 for the empty values. A view on the file
+     */
+    public IntBuffer getCodes(int column) {
+        return slice(columnOffsets[column] + 8, 4 * rowCount).asIntBuffer();
+    }
+
+    /**
+     * @param column, the index in {@link #getStringColumnNames()}
+     * @return the distinct values of the column, by code
+     */
+    public String[] getDictionary(int column) {
+        int offset = (int) columnOffsets[column];
+        int dictionarySize = buffer.getInt(offset);
+        IntBuffer valueOffsets = slice(offset + 8 + 4L * rowCount, 4 * (dictionarySize + 1)).asIntBuffer();
+        ByteBuffer bytes = slice(offset + 8 + 4L * rowCount + 4L * (dictionarySize + 1), buffer.getInt(offset + 4));
+
+        String[] dictionary = new String[dictionarySize];
+        for (int code = 0; code < dictionarySize; code++) {
+            byte[] value = new byte[valueOffsets.get(code + 1) - valueOffsets.get(code)];
+            bytes.position(valueOffsets.get(code));
+            bytes.get(value);
+            dictionary[code] = new String(value, StandardCharsets.UTF_8);
+        }
+        return dictionary;
+    }
+
+    /**
+     * @param column, the name of a string column, e.g. "database_identifier"
+     * @return the value of each row, null for the empty values. Null if the file has no such column
+     */
+    public String[] getStringColumn(String column) {
+        int index = stringColumnNames.indexOf(column);
+        if (index < 0)
+            return null;
+
+        String[] dictionary = getDictionary(index);
+        IntBuffer codes = getCodes(index);
+        String[] values = new String[rowCount];
+        for (int row = 0; row < rowCount; row++) {
+            int code = codes.get(row);
+            values[row] = code >= 0 ? dictionary[code] : null;
+        }
+        return values;
+    }
+
+    /**
+     * @param sample, the index in {@link #getSampleNames()}
+     * @return the value of each row, NaN where the row has no value. A view on the file
+     */
+    public DoubleBuffer getSampleColumn(int sample) {
+        long offset = columnOffsets[stringColumnNames.size() + sample];
+        return slice(offset + 8L * getBitmapWords(), 8 * rowCount).asDoubleBuffer();
+    }
+
+    /**
+     * @return true if the row has a value for the sample
+     */
+    public boolean isPresent(int sample, int row) {
+        long offset = columnOffsets[stringColumnNames.size() + sample];
+        return (buffer.getLong((int) (offset + 8L * (row >>> 6))) & (1L << (row & 63))) != 0;
+    }
+
+    private int getBitmapWords() {
+        return (rowCount + 63) / 64;
+    }
+
+    private ByteBuffer slice(long offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position((int) offset);
+        duplicate.limit((int) offset + length);
+        return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close(); //The mapping stays valid until it is garbage collected
+    }
+
+    @Override
+    public String toString() {
+        return mafcFile + ": " + rowCount + " rows, " + stringColumnNames.size() + " string and " + sampleColumnNames.size() + " sample columns";
+    }
+}
@@ -0,0 +1,221 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Writes the MAF as a columnar binary file (.mafc) that analysis tools can memory-map and read without parsing, see
+ * {@link ColumnarMafReader}. The MAF columns before the samples are dictionary-encoded strings, the sample columns
+ * are float64 values with a bitmap of the cells that exist.
+ *
+ * The columns are kept in memory, an int per row for the string columns and a double per row for the samples, and
+ * written when the sink is closed. All numbers are little-endian. Layout, sections start at a multiple of 8:
+ * <pre>
+ * header      "MAFCOL" 0 1 (8 bytes), int32 version (1), int32 rowCount, int32 stringColumnCount S,
+ *             int32 sampleColumnCount N, int64 columnOffset[S + N], then for each column int32 nameLength, UTF-8 name
+ * string col  int32 dictionarySize D, int32 byteLength B, int32 code[rowCount] (-1 for an empty value),
+ *             int32 valueOffset[D + 1] (into the bytes), UTF-8 bytes[B]
+ * sample col  int64 presentBitmap[(rowCount + 63) / 64] (bit r % 64 of word r / 64 is set if the row has a value),
+ *             float64 value[rowCount] (NaN where there is no value)
+ * </pre>
+ */
+public class ColumnarMafSink implements MafSink {
+
+    static final byte[] MAGIC = { 'M', 'A', 'F', 'C', 'O', 'L', 0, 1 };
+    static final int VERSION = 1;
+    public static final String EXTENSION = ".mafc";
+
+    private final File outputFile;
+    private final ConversionContext context;
+
+    private List<String> stringColumnNames;
+    private List<String> sampleColumnNames;
+    private List<Map<String, Integer>> dictionaries;
+    private int[][] codes;
+    private double[][] values;
+    private int rowCount = 0;
+
+    /**
+     * @param outputFile, the .mafc file to create
+     * @param context, gives the MAF column of the first sample, set with the header row
+     */
+    public ColumnarMafSink(File outputFile, ConversionContext context) {
+        this.outputFile = outputFile;
+        this.context = context;
+    }
+
+    /**
+     * @return e.g. MetabolonPeakAreaTable_maf.tsv.gz -> MetabolonPeakAreaTable_maf.mafc
+     */
+    public static File getColumnarFile(File mafFile) {
+        String name = mafFile.getName();
+        if (name.toLowerCase().endsWith(".gz"))
+            name = name.substring(0, name.length() - 3);
+        int extension = name.lastIndexOf('.');
+        return new File(mafFile.getParentFile(), (extension > 0 ? name.substring(0, extension) : name) + EXTENSION);
+    }
+
+    @Override
+    public void writeHeader(List<String> headers) {
+        int firstSampleColumn = Math.min(context.getFirstSampleColumn(), headers.size());
+        stringColumnNames = new ArrayList<>(headers.subList(0, firstSampleColumn));
+        sampleColumnNames = new ArrayList<>(headers.subList(firstSampleColumn, headers.size()));
+
+        dictionaries = new ArrayList<>();
+        for (int i = 0; i < stringColumnNames.size(); i++)
+            dictionaries.add(new LinkedHashMap<>());
+        codes = new int[stringColumnNames.size()][64];
+        values = new double[sampleColumnNames.size()][64];
+    }
+
+    @Override
+    public void writeRow(Object[] row) {
+        if (rowCount == (codes.length > 0 ? codes[0].length : values.length > 0 ? values[0].length : Integer.MAX_VALUE)) {
+            int capacity = rowCount * 2;
+            for (int i = 0; i < codes.length; i++)
+                codes[i] = Arrays.copyOf(codes[i], capacity);
+            for (int i = 0; i < values.length; i++)
+                values[i] = Arrays.copyOf(values[i], capacity);
+        }
+
+        for (int i = 0; i < codes.length; i++) {
+            Object value = i < row.length ? row[i] : null;
+            String text = value instanceof Double ? TsvMafSink.formatNumber((Double) value) : value != null ? value.toString() : "";
+            if (text.isEmpty()) {
+                codes[i][rowCount] = -1;
+            } else {
+                Map<String, Integer> dictionary = dictionaries.get(i);
+                Integer code = dictionary.get(text);
+                if (code == null) {
+                    code = dictionary.size();
+                    dictionary.put(text, code);
+                }
+                codes[i][rowCount] = code;
+            }
+        }
+
+        int firstSampleColumn = codes.length;
+        for (int i = 0; i < values.length; i++) {
+            Object value = firstSampleColumn + i < row.length ? row[firstSampleColumn + i] : null;
+            values[i][rowCount] = value instanceof Double ? (Double) value : Double.NaN;
+        }
+
+        rowCount++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (codes == null)
+            throw new IOException("No header row was written to " + outputFile);
+
+        List<byte[]> names = new ArrayList<>();
+        for (String name : stringColumnNames)
+            names.add(name.getBytes(StandardCharsets.UTF_8));
+        for (String name : sampleColumnNames)
+            names.add(name.getBytes(StandardCharsets.UTF_8));
+
+        int headerLength = 8 + 4 * 4 + 8 * names.size();
+        for (byte[] name : names)
+            headerLength += 4 + name.length;
+
+        try (FileChannel channel = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long[] columnOffsets = new long[names.size()];
+            long position = align(headerLength);
+            channel.position(position);
+
+            for (int i = 0; i < codes.length; i++) {
+                columnOffsets[i] = position;
+                position = align(position + writeStringColumn(channel, i));
+                channel.position(position);
+            }
+            for (int i = 0; i < values.length; i++) {
+                columnOffsets[codes.length + i] = position;
+                position = align(position + writeSampleColumn(channel, i));
+                channel.position(position);
+            }
+
+            ByteBuffer header = newBuffer(headerLength);
+            header.put(MAGIC).putInt(VERSION).putInt(rowCount).putInt(codes.length).putInt(values.length);
+            for (long columnOffset : columnOffsets)
+                header.putLong(columnOffset);
+            for (byte[] name : names)
+                header.putInt(name.length).put(name);
+            header.flip();
+            channel.position(0);
+            writeFully(channel, header);
+        }
+
+        Log.info("Wrote "+rowCount+" rows, "+codes.length+" dictionary-encoded and "+values.length+" sample columns to "+outputFile);
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    private long writeStringColumn(FileChannel channel, int column) throws IOException {
+        Set<String> dictionary = dictionaries.get(column).keySet();
+        List<byte[]> entries = new ArrayList<>(dictionary.size());
+        int byteLength = 0;
+        for (String value : dictionary) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            entries.add(bytes);
+            byteLength += bytes.length;
+        }
+
+        ByteBuffer buffer = newBuffer(8 + 4 * rowCount + 4 * (entries.size() + 1) + byteLength);
+        buffer.putInt(entries.size()).putInt(byteLength);
+        buffer.asIntBuffer().put(codes[column], 0, rowCount);
+        buffer.position(buffer.position() + 4 * rowCount);
+        int offset = 0;
+        for (byte[] entry : entries) {
+            buffer.putInt(offset);
+            offset += entry.length;
+        }
+        buffer.putInt(offset);
+        for (byte[] entry : entries)
+            buffer.put(entry);
+
+        buffer.flip();
+        return writeFully(channel, buffer);
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    private long writeSampleColumn(FileChannel channel, int column) throws IOException {
+        long[] present = new long[(rowCount + 63) / 64];
+        for (int row = 0; row < rowCount; row++) {
+            if (!Double.isNaN(values[column][row]))
+                present[row >>> 6] |= 1L << (row & 63);
+        }
+
+        ByteBuffer buffer = newBuffer(8 * present.length + 8 * rowCount);
+        buffer.asLongBuffer().put(present);
+        buffer.position(8 * present.length);
+        buffer.asDoubleBuffer().put(values[column], 0, rowCount);
+        buffer.position(buffer.capacity());
+
+        buffer.flip();
+        return writeFully(channel, buffer);
+    }
+
+    private static ByteBuffer newBuffer(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining())
+            written += channel.write(buffer);
+        return written;
+    }
+
+    private static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+}
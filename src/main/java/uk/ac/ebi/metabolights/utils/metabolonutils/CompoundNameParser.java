@@ -0,0 +1,100 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+/**
+ * Decides if a Metabolon compound name reports more than one compound, and where to split it.
+ *
+ * Compounds are separated by "/" outside of brackets. Slashes inside brackets are part of a lipid name, so
+ * "PC(16:0/18:1)" is one compound and "PC(16:0/18:1)/PE(18:0/20:4)" is two. Round and square brackets are tracked,
+ * nested or not. The name is scanned once, nothing is allocated for names that are not split.
+ */
+public final class CompoundNameParser {
+
+    private CompoundNameParser() {
+    }
+
+    /**
+     * @param name, the compound name
+     * @return the number of "/" outside of brackets, 0 if the name is one compound
+     */
+    public static int countSplitPoints(String name) {
+        return scan(name, null);
+    }
+
+    /**
+     * @param name, the compound name
+     * @return true if the name reports more than one compound
+     */
+    public static boolean needsSplitting(String name) {
+        return split(name) != null;
+    }
+
+    /**
+     * @param name, the compound name
+     * @return the compound names, in the order they are reported, or null if the name is one compound. Names with
+     * an empty part ("glucose/") are not split
+     */
+    public static String[] split(String name) {
+        int count = scan(name, null);
+        if (count == 0)
+            return null;
+
+        int[] splitPoints = new int[count];
+        scan(name, splitPoints);
+
+        String[] compounds = new String[count + 1];
+        int start = 0;
+        for (int i = 0; i <= count; i++) {
+            int end = i < count ? splitPoints[i] : name.length();
+            if (isBlank(name, start, end))
+                return null;
+            compounds[i] = name.substring(start, end);
+            start = end + 1;
+        }
+        return compounds;
+    }
+
+    /**
+     * Find the "/" outside of brackets
+     * @param name, the compound name
+     * @param splitPoints, filled with the positions of the "/" if not null
+     * @return the number of "/" outside of brackets
+     */
+    private static int scan(String name, int[] splitPoints) {
+        if (name == null)
+            return 0;
+
+        int depth = 0;
+        int count = 0;
+        for (int i = 0, n = name.length(); i < n; i++) {
+            switch (name.charAt(i)) {
+                case '(':
+                case '[':
+                    depth++;
+                    break;
+                case ')':
+                case ']':
+                    if (depth > 0) //A stray closing bracket does not hide the slashes after it
+                        depth--;
+                    break;
+                case '/':
+                    if (depth == 0) {
+                        if (splitPoints != null)
+                            splitPoints[count] = i;
+                        count++;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isBlank(String name, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(name.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+}
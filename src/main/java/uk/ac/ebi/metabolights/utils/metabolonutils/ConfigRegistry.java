@@ -0,0 +1,79 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.apache.xmlbeans.XmlException;
+import org.isatools.isacreator.configuration.io.ConfigXMLParser;
+import org.isatools.isatab.configurator.schema.IsaTabConfigurationType;
+import org.isatools.isatab.configurator.schema.IsatabConfigFileDocument;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parses each ISA assay configuration file once and shares the result between conversions.
+ * A configuration is parsed again when the modification time of its file changes.
+ */
+public class ConfigRegistry {
+
+    private static final ConfigRegistry instance = new ConfigRegistry();
+
+    private final ConcurrentHashMap<String, MafConfiguration> configurations = new ConcurrentHashMap<>();
+
+    public static ConfigRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param configurationFile, the ISA configuration xml file
+     * @return MafConfiguration, the first table in the file. Null if the file could not be parsed
+     */
+    public MafConfiguration getConfiguration(String configurationFile) {
+        String key = new File(configurationFile).getAbsolutePath();
+        long lastModified = new File(key).lastModified();
+
+        MafConfiguration configuration = configurations.get(key);
+        if (configuration != null && configuration.getLastModified() == lastModified)
+            return configuration;
+
+        //Parse outside of the map, a failed parse is not cached
+        configuration = parseConfiguration(key, lastModified);
+        if (configuration != null)
+            configurations.put(key, configuration);
+
+        return configuration;
+    }
+
+    /**
+     * Forget all the parsed configurations
+     */
+    public void clear() {
+        configurations.clear();
+    }
+
+    private MafConfiguration parseConfiguration(String configurationFile, long lastModified) {
+        Log.info("Parsing the configuration file "+configurationFile);
+
+        //Load the current settings file
+        try (InputStream inputStream = new FileInputStream(configurationFile)) {
+            IsatabConfigFileDocument configurationDocument = IsatabConfigFileDocument.Factory.parse(inputStream);
+            ConfigXMLParser parser = new ConfigXMLParser("");
+
+            //Add columns defined in the configuration file
+            for (IsaTabConfigurationType doc : configurationDocument.getIsatabConfigFile().getIsatabConfigurationArray()) {
+                parser.processTable(doc);
+            }
+
+            if (parser.getTables().size() > 0)
+                return new MafConfiguration(configurationFile, lastModified, parser.getTables().get(0));
+
+        } catch (XmlException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+}
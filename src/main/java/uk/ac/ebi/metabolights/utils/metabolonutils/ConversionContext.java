@@ -0,0 +1,107 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.isatools.plugins.metabolights.assignments.model.Metabolite;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The state of one conversion. FileUtils keeps no per-file state itself, so one FileUtils can convert many files,
+ * also at the same time.
+ */
+public class ConversionContext {
+
+    private final String inputFile;
+    private final String outputFile;
+    private int firstSampleColumn = 0;
+    private int mafColumnCount = -1;
+    private int[] mafColumns;
+    private File journalFile;
+    private int mafRowCount = 0;
+    private Map<LookupKey, Metabolite> resolvedMetabolites = Collections.emptyMap();
+    private final ConversionMetrics metrics;
+
+    public ConversionContext(String inputFile, String outputFile) {
+        this.inputFile = inputFile;
+        this.outputFile = outputFile;
+        this.metrics = new ConversionMetrics(inputFile, outputFile);
+    }
+
+    public String getInputFile() {
+        return inputFile;
+    }
+
+    public String getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * @return the MAF column of the first sample
+     */
+    public int getFirstSampleColumn() {
+        return firstSampleColumn;
+    }
+
+    public void setFirstSampleColumn(int firstSampleColumn) {
+        this.firstSampleColumn = firstSampleColumn;
+    }
+
+    /**
+     * @return the number of cells in the MAF header row, -1 until the header row is complete
+     */
+    public int getMafColumnCount() {
+        return mafColumnCount;
+    }
+
+    public void setMafColumnCount(int mafColumnCount) {
+        this.mafColumnCount = mafColumnCount;
+    }
+
+    /**
+     * @return the MAF column of each MetabolonColumnMapping.MafField, by ordinal, -1 for the fields the configuration
+     * does not have. Set with the header row
+     */
+    public int[] getMafColumns() {
+        return mafColumns;
+    }
+
+    public void setMafColumns(int[] mafColumns) {
+        this.mafColumns = mafColumns;
+    }
+
+    /**
+     * @return the journal of the resolved compounds, see {@link ConversionJournal}. Null without checkpointing
+     */
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    public void setJournalFile(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    public int getMafRowCount() {
+        return mafRowCount;
+    }
+
+    public void incrementMafRowCount() {
+        mafRowCount++;
+    }
+
+    public void addMafRowCount(int rows) {
+        mafRowCount += rows;
+    }
+
+    public Map<LookupKey, Metabolite> getResolvedMetabolites() {
+        return resolvedMetabolites;
+    }
+
+    public void setResolvedMetabolites(Map<LookupKey, Metabolite> resolvedMetabolites) {
+        this.resolvedMetabolites = resolvedMetabolites;
+    }
+
+    public ConversionMetrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,90 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.io.File;
+
+/**
+ * One workbook submitted to the {@link ConversionService}, and how far its conversion got
+ */
+public class ConversionJob {
+
+    public enum Status { QUEUED, RUNNING, SUCCEEDED, FAILED }
+
+    private final String id;
+    private final File inputFile;
+    private final File outputFile;
+    private final long submittedAt = System.currentTimeMillis();
+    private volatile Status status = Status.QUEUED;
+    private volatile long startedAt = 0;
+    private volatile long finishedAt = 0;
+    private volatile String error;
+
+    public ConversionJob(String id, File inputFile, File outputFile) {
+        this.id = id;
+        this.inputFile = inputFile;
+        this.outputFile = outputFile;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public File getInputFile() {
+        return inputFile;
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return when the conversion ended, 0 while the job is queued or running
+     */
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    /**
+     * @return why the conversion failed, null if it did not
+     */
+    public String getError() {
+        return error;
+    }
+
+    void started() {
+        startedAt = System.currentTimeMillis();
+        status = Status.RUNNING;
+    }
+
+    void finished(ConversionResult result) {
+        finishedAt = System.currentTimeMillis();
+        error = result.isSuccess() ? null : String.valueOf(result.getError());
+        status = result.isSuccess() ? Status.SUCCEEDED : Status.FAILED;
+    }
+
+    public boolean isDone() {
+        return status == Status.SUCCEEDED || status == Status.FAILED;
+    }
+
+    /**
+     * @return the job status, as JSON
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"id\": ").append(ConversionMetrics.jsonString(id));
+        json.append(", \"status\": ").append(ConversionMetrics.jsonString(status.name()));
+        json.append(", \"inputFile\": ").append(ConversionMetrics.jsonString(inputFile.getName()));
+        json.append(", \"outputFile\": ").append(ConversionMetrics.jsonString(outputFile.getName()));
+        json.append(", \"submittedAt\": ").append(submittedAt);
+        if (startedAt > 0)
+            json.append(", \"queuedMillis\": ").append(startedAt - submittedAt);
+        if (finishedAt > 0)
+            json.append(", \"elapsedMillis\": ").append(finishedAt - startedAt);
+        if (error != null)
+            json.append(", \"error\": ").append(ConversionMetrics.jsonString(error));
+        return json.append("}").toString();
+    }
+}
@@ -0,0 +1,203 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.isatools.plugins.metabolights.assignments.model.Metabolite;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Append-only journal of the compounds resolved by one conversion, so a conversion that died (killed, out of memory,
+ * web services down) can be resumed without resolving the same compounds again.
+ *
+ * Every batch resolved by the delegate lookup is appended and flushed as soon as it is back, followed by a checkpoint
+ * line with the number of compounds resolved so far. When the conversion is resumed the journal is replayed and only
+ * the compounds that are not in it are resolved; building and writing the MAF rows takes seconds, so they are simply
+ * done again. The journal is tied to the input file (name, size and modification time) and deleted once the
+ * conversion has succeeded.
+ *
+ * File format, tab separated, \N for null:
+ * <pre>
+ * #journal  inputName  inputSize  inputLastModified
+ * R  dbId  name  identifier  formula  smiles  inchi     one per resolved compound
+ * C  compoundsResolved  time                            after every batch
+ * </pre>
+ * A line that was not completely written (no line end) is ignored.
+ */
+public class ConversionJournal implements MetaboliteLookup, Closeable {
+
+    private static final String NULL_VALUE = "\\N";
+    private static final String HEADER = "#journal";
+    private static final String RESOLVED = "R";
+    private static final String CHECKPOINT = "C";
+
+    private final MetaboliteLookup delegate;
+    private final File journalFile;
+    private final Map<LookupKey, Metabolite> replayed = new HashMap<>();
+    private final Writer journalWriter;
+    private int resolvedCount = 0;
+    private int replayedHits = 0;
+
+    /**
+     * @param delegate, resolves the compounds that are not in the journal
+     * @param journalFile, see {@link #getJournalFile(File)}
+     * @param inputFile, the Metabolon file being converted
+     * @param resume, replay the journal of a previous run of the same conversion. If false, or if the journal is of
+     * another input, it is started again
+     */
+    public ConversionJournal(MetaboliteLookup delegate, File journalFile, File inputFile, boolean resume) throws IOException {
+        this.delegate = delegate;
+        this.journalFile = journalFile;
+
+        String header = String.join("\t", HEADER, toValue(inputFile.getName()), Long.toString(inputFile.length()),
+                Long.toString(inputFile.lastModified()));
+        boolean replay = resume && replay(header);
+        if (resume && !replay)
+            Log.info("No journal to resume "+inputFile+" from, converting it from the start");
+
+        journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, replay), StandardCharsets.UTF_8));
+        if (!replay) {
+            journalWriter.write(header + "\n");
+            journalWriter.flush();
+        }
+    }
+
+    /**
+     * @return e.g. MetabolonPeakAreaTable_maf.tsv -> MetabolonPeakAreaTable_maf.tsv.journal
+     */
+    public static File getJournalFile(File outputFile) {
+        return new File(outputFile.getPath() + ".journal");
+    }
+
+    /**
+     * Read the journal of a previous run
+     * @param header, the header line of this conversion
+     * @return false if there is no journal, or it is of another input file
+     */
+    private boolean replay(String header) throws IOException {
+        if (!journalFile.exists())
+            return false;
+
+        String content = new String(Files.readAllBytes(journalFile.toPath()), StandardCharsets.UTF_8);
+        content = content.substring(0, content.lastIndexOf('\n') + 1); //Drop a line cut short
+        String[] lines = content.split("\n");
+        if (lines.length == 0 || !lines[0].equals(header))
+            return false;
+
+        int checkpoint = 0;
+        for (int i = 1; i < lines.length; i++) {
+            String[] values = lines[i].split("\t", -1);
+            if (values[0].equals(RESOLVED) && values.length == 7) {
+                Metabolite met = null;
+                if (!NULL_VALUE.equals(values[3]) || !NULL_VALUE.equals(values[4]) || !NULL_VALUE.equals(values[5]) || !NULL_VALUE.equals(values[6])) {
+                    met = new Metabolite();
+                    met.setIdentifier(fromValue(values[3]));
+                    met.setFormula(fromValue(values[4]));
+                    met.setSmiles(fromValue(values[5]));
+                    met.setInchi(fromValue(values[6]));
+                }
+                replayed.put(new LookupKey(fromValue(values[1]), fromValue(values[2])), met);
+            } else if (values[0].equals(CHECKPOINT) && values.length == 3) {
+                checkpoint = Integer.parseInt(values[1]);
+            }
+        }
+
+        resolvedCount = replayed.size();
+        Log.info("Resuming from the journal "+journalFile+": "+replayed.size()+" compounds resolved, last checkpoint at "+checkpoint);
+        return true;
+    }
+
+    @Override
+    public Metabolite resolve(LookupKey key) {
+        return resolveAll(Collections.singletonList(key)).get(key);
+    }
+
+    /**
+     * Resolve the compounds that are not in the journal with one resolveAll call to the delegate, and journal them
+     */
+    @Override
+    public Map<LookupKey, Metabolite> resolveAll(Collection<LookupKey> keys) {
+        Map<LookupKey, Metabolite> resolved = new LinkedHashMap<>();
+        List<LookupKey> missingKeys = new ArrayList<>();
+
+        synchronized (this) {
+            for (LookupKey key : new LinkedHashSet<>(keys)) {
+                if (replayed.containsKey(key)) {
+                    resolved.put(key, replayed.get(key));
+                    replayedHits++;
+                } else {
+                    missingKeys.add(key);
+                }
+            }
+        }
+
+        if (!missingKeys.isEmpty()) {
+            Map<LookupKey, Metabolite> delegateResolved = delegate.resolveAll(missingKeys); //Not holding the lock
+            append(delegateResolved);
+            resolved.putAll(delegateResolved);
+        }
+
+        return resolved;
+    }
+
+    private synchronized void append(Map<LookupKey, Metabolite> resolved) {
+        try {
+            for (Map.Entry<LookupKey, Metabolite> entry : resolved.entrySet()) {
+                Metabolite met = entry.getValue();
+                journalWriter.write(String.join("\t", RESOLVED, toValue(entry.getKey().getNormalisedDbId()),
+                        toValue(entry.getKey().getNormalisedName()), toValue(met != null ? met.getIdentifier() : null),
+                        toValue(met != null ? met.getFormula() : null), toValue(met != null ? met.getSmiles() : null),
+                        toValue(met != null ? met.getInchi() : null)) + "\n");
+            }
+            resolvedCount += resolved.size();
+            journalWriter.write(String.join("\t", CHECKPOINT, Integer.toString(resolvedCount), Long.toString(System.currentTimeMillis())) + "\n");
+            journalWriter.flush();
+        } catch (IOException e) {
+            Log.warn("Could not write to the journal "+journalFile+": "+e.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of compounds answered from the journal of the previous run
+     */
+    public synchronized int getReplayedHits() {
+        return replayedHits;
+    }
+
+    /**
+     * @return the number of compounds in the journal
+     */
+    public synchronized int getResolvedCount() {
+        return resolvedCount;
+    }
+
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * Stop writing, the journal is kept for a resume until {@link #delete(File)}
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        journalWriter.close();
+    }
+
+    /**
+     * Remove the journal of a conversion that succeeded
+     */
+    public static void delete(File journalFile) throws IOException {
+        Files.deleteIfExists(journalFile.toPath());
+    }
+
+    private static String toValue(String value) {
+        if (value == null)
+            return NULL_VALUE;
+        return value.replace("\t", " ").replace("\n", " ").replace("\r", " ");
+    }
+
+    private static String fromValue(String value) {
+        return NULL_VALUE.equals(value) ? null : value;
+    }
+}
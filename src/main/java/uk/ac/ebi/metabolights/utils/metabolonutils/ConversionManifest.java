@@ -0,0 +1,235 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.isatools.plugins.metabolights.assignments.model.Metabolite;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * What a conversion to a MAF file produced, so the next delivery of the same study only redoes what changed.
+ * Kept next to the MAF file (m_study_maf.tsv.manifest): the MAF headers, then one line per MAF row with the
+ * compound key, a hash of the Metabolon values of the row and the resolved identifiers.
+ *
+ * Compounds are matched between deliveries on their key, the normalised database id and name, numbered when the
+ * same compound is reported more than once. A compound with the same key does not need to be resolved again, a
+ * compound with the same key and hash gets the same MAF line.
+ */
+public class ConversionManifest {
+
+    private static final String HEADERS = "#headers";
+    private static final String NULL_VALUE = "\\N";
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final List<String> headers;
+    private final List<Entry> entries = new ArrayList<>();
+    private final Map<String, Entry> entriesByKey = new HashMap<>();
+
+    /**
+     * @param headers, the MAF header row the manifest is for
+     */
+    public ConversionManifest(List<String> headers) {
+        this.headers = new ArrayList<>(headers);
+    }
+
+    /**
+     * @return e.g. m_study_maf.tsv -> m_study_maf.tsv.manifest
+     */
+    public static File getManifestFile(File mafFile) {
+        return new File(mafFile.getPath() + ".manifest");
+    }
+
+    public List<String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the number of MAF rows
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param key, from {@link #getCompoundKeys(MetabolonTable)}
+     * @return the entry of the compound in the previous conversion, null if it is new
+     */
+    public Entry get(String key) {
+        return entriesByKey.get(key);
+    }
+
+    /**
+     * Add the next MAF row
+     * @param key, the compound key
+     * @param rowHash, see {@link #getRowHash(MetabolonTable, int)}
+     * @param met, the resolved compound, null if it was not resolved
+     */
+    public void add(String key, long rowHash, Metabolite met) {
+        Entry entry = new Entry(entries.size(), key, rowHash, met != null ? met.getIdentifier() : null,
+                met != null ? met.getFormula() : null, met != null ? met.getSmiles() : null, met != null ? met.getInchi() : null);
+        entries.add(entry);
+        entriesByKey.put(key, entry);
+    }
+
+    /**
+     * @return one key per compound of the table, in table order
+     */
+    public static String[] getCompoundKeys(MetabolonTable table) {
+        String[] keys = new String[table.getCompoundCount()];
+        Map<String, Integer> occurrences = new HashMap<>();
+
+        for (int compound = 0; compound < table.getCompoundCount(); compound++) {
+            LookupKey lookupKey = table.getLookupKey(compound);
+            String key = lookupKey != null ? toValue(lookupKey.getNormalisedDbId()) + "/" + toValue(lookupKey.getNormalisedName()) : NULL_VALUE;
+            int occurrence = occurrences.merge(key, 1, Integer::sum);
+            keys[compound] = occurrence > 1 ? key + "#" + occurrence : key;
+        }
+
+        return keys;
+    }
+
+    /**
+     * @return a 64 bit FNV-1a hash of everything that goes into the MAF row of a compound, other than the resolved
+     * identifiers: the name, the database id, the mass and the peak areas
+     */
+    public static long getRowHash(MetabolonTable table, int compound) {
+        long hash = FNV_OFFSET;
+        hash = hash(hash, table.getName(compound));
+        hash = hash(hash, table.getDatabaseIdentifier(compound));
+        hash = hash(hash, Double.doubleToLongBits(table.getMass(compound)));
+        for (int sample = 0; sample < table.getSampleCount(); sample++)
+            hash = hash(hash, Double.doubleToLongBits(table.getIntensity(compound, sample)));
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        if (value == null)
+            return hash(hash, -1L);
+
+        for (int i = 0; i < value.length(); i++)
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        return hash(hash, value.length());
+    }
+
+    private static long hash(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    /**
+     * @return the manifest, null if there is no manifest file or it can not be read
+     */
+    public static ConversionManifest load(File manifestFile) {
+        if (!manifestFile.exists())
+            return null;
+
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null || !line.startsWith(HEADERS + "\t"))
+                return null;
+
+            List<String> headers = Arrays.asList(line.split("\t", -1));
+            ConversionManifest manifest = new ConversionManifest(headers.subList(1, headers.size()));
+
+            while ((line = reader.readLine()) != null) {
+                String[] values = line.split("\t", -1);
+                if (values.length != 6)
+                    return null; //Not written by this version, or incomplete
+
+                Entry entry = new Entry(manifest.entries.size(), values[0], Long.parseUnsignedLong(values[1], 16),
+                        fromValue(values[2]), fromValue(values[3]), fromValue(values[4]), fromValue(values[5]));
+                manifest.entries.add(entry);
+                manifest.entriesByKey.put(entry.key, entry);
+            }
+            return manifest;
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Could not read the manifest "+manifestFile+", converting everything: "+e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the manifest to a temporary file first, so an interrupted save leaves the previous manifest
+     */
+    public void save(File manifestFile) throws IOException {
+        File tmpFile = new File(manifestFile.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8))) {
+            writer.write(HEADERS);
+            for (String header : headers)
+                writer.append('\t').write(toValue(header));
+            writer.write("\n");
+
+            for (Entry entry : entries) {
+                writer.write(String.join("\t", entry.key, Long.toHexString(entry.rowHash), toValue(entry.identifier),
+                        toValue(entry.formula), toValue(entry.smiles), toValue(entry.inchi)));
+                writer.write("\n");
+            }
+        }
+        Files.move(tmpFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String toValue(String value) {
+        if (value == null)
+            return NULL_VALUE;
+        return value.replace("\t", " ").replace("\n", " ").replace("\r", " ");
+    }
+
+    private static String fromValue(String value) {
+        return NULL_VALUE.equals(value) ? null : value;
+    }
+
+    /**
+     * One MAF row of a previous conversion
+     */
+    public static class Entry {
+        private final int row;
+        private final String key;
+        private final long rowHash;
+        private final String identifier;
+        private final String formula;
+        private final String smiles;
+        private final String inchi;
+
+        Entry(int row, String key, long rowHash, String identifier, String formula, String smiles, String inchi) {
+            this.row = row;
+            this.key = key;
+            this.rowHash = rowHash;
+            this.identifier = identifier;
+            this.formula = formula;
+            this.smiles = smiles;
+            this.inchi = inchi;
+        }
+
+        /**
+         * @return the MAF row, 0 for the first row after the header
+         */
+        public int getRow() {
+            return row;
+        }
+
+        public long getRowHash() {
+            return rowHash;
+        }
+
+        /**
+         * @return the compound as it was resolved, null if it was not
+         */
+        public Metabolite toMetabolite() {
+            if (identifier == null && formula == null && smiles == null && inchi == null)
+                return null;
+
+            Metabolite met = new Metabolite();
+            met.setIdentifier(identifier);
+            met.setFormula(formula);
+            met.setSmiles(smiles);
+            met.setInchi(inchi);
+            return met;
+        }
+    }
+}
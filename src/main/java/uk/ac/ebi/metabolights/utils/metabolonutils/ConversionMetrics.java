@@ -0,0 +1,177 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+/**
+ * Timers and counters for one conversion, published to the {@link MetricsSink}s when the conversion is done.
+ * Stages and counters are reported in the order they were first recorded.
+ */
+public class ConversionMetrics {
+
+    public static final String ROWS = "rows";                    //Metabolon rows read
+    public static final String ROWS_SPLIT = "rowsSplit";         //Rows reporting two compounds
+    public static final String COMPOUNDS = "compounds";          //MAF rows written
+    public static final String MAF_ROWS_COPIED = "mafRowsCopied"; //Unchanged rows copied from the previous MAF
+    public static final String LOOKUP_KEYS = "lookupKeys";       //Distinct compounds to resolve
+    public static final String LOOKUP_BATCHES = "lookupBatches";
+    public static final String LOOKUP_FAILURES = "lookupFailures";
+    public static final String WEB_SERVICE_REQUESTS = "webServiceRequests";
+    public static final String WEB_SERVICE_REQUESTS_AVOIDED = "webServiceRequestsAvoided";
+    public static final String CACHE_HITS = "cacheHits";
+    public static final String CACHE_MISSES = "cacheMisses";
+    public static final String JOURNAL_HITS = "journalHits";     //Compounds replayed from the journal of a failed run
+
+    private final String inputFile;
+    private final String outputFile;
+    private final long startedAt = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Long> stageNanos = new LinkedHashMap<>();
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
+    private long elapsedNanos = -1;
+
+    public ConversionMetrics(String inputFile, String outputFile) {
+        this.inputFile = inputFile;
+        this.outputFile = outputFile;
+    }
+
+    /**
+     * Time a stage, use with try-with-resources. A stage timed more than once adds up
+     * @param stage, the name of the stage
+     */
+    public StageTimer time(String stage) {
+        return new StageTimer(stage);
+    }
+
+    public synchronized void addStageNanos(String stage, long nanos) {
+        stageNanos.merge(stage, nanos, Long::sum);
+    }
+
+    public synchronized void increment(String counter, long delta) {
+        counters.merge(counter, delta, Long::sum);
+    }
+
+    public synchronized long getCounter(String counter) {
+        return counters.getOrDefault(counter, 0L);
+    }
+
+    public synchronized Map<String, Long> getCounters() {
+        return new LinkedHashMap<>(counters);
+    }
+
+    /**
+     * @return the time spent in each stage, in nanoseconds
+     */
+    public synchronized Map<String, Long> getStageNanos() {
+        return new LinkedHashMap<>(stageNanos);
+    }
+
+    /**
+     * @return the latency of each lookup (batch of compounds)
+     */
+    public LatencyHistogram getLookupLatency() {
+        return lookupLatency;
+    }
+
+    public String getInputFile() {
+        return inputFile;
+    }
+
+    public String getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Stop the clock for the whole conversion
+     */
+    public synchronized void finish() {
+        if (elapsedNanos < 0)
+            elapsedNanos = System.nanoTime() - startNanos;
+    }
+
+    public synchronized long getElapsedNanos() {
+        return elapsedNanos >= 0 ? elapsedNanos : System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @return one line with the stage times and the counters, for the log
+     */
+    public synchronized String getSummary() {
+        StringBuilder summary = new StringBuilder("Converted " + inputFile + " in " + getElapsedNanos() / 1000000 + " ms:");
+        stageNanos.forEach((stage, nanos) -> summary.append(" ").append(stage).append(" ").append(nanos / 1000000).append(" ms,"));
+        counters.forEach((counter, value) -> summary.append(" ").append(counter).append(" ").append(value).append(","));
+        summary.setLength(summary.length() - 1);
+        return summary.toString();
+    }
+
+    /**
+     * @return the run report, as JSON
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"inputFile\": ").append(jsonString(inputFile)).append(",\n");
+        json.append("  \"outputFile\": ").append(jsonString(outputFile)).append(",\n");
+        json.append("  \"startedAt\": ").append(startedAt).append(",\n");
+        json.append("  \"elapsedMillis\": ").append(getElapsedNanos() / 1e6).append(",\n");
+
+        json.append("  \"stagesMillis\": {");
+        appendEntries(json, stageNanos, nanos -> Double.toString(nanos / 1e6));
+        json.append("},\n");
+
+        json.append("  \"counters\": {");
+        appendEntries(json, counters, value -> Long.toString(value));
+        json.append("},\n");
+
+        json.append("  \"lookupLatency\": ").append(lookupLatency.toJson()).append("\n");
+        return json.append("}\n").toString();
+    }
+
+    private static void appendEntries(StringBuilder json, Map<String, Long> entries, LongFunction<String> format) {
+        String separator = "";
+        for (Map.Entry<String, Long> entry : entries.entrySet()) {
+            json.append(separator).append(jsonString(entry.getKey())).append(": ").append(format.apply(entry.getValue()));
+            separator = ", ";
+        }
+    }
+
+    static String jsonString(String value) {
+        if (value == null)
+            return "null";
+
+        StringBuilder json = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':  json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if (c < 0x20)
+                        json.append(String.format("\\u%04x", (int) c));
+                    else
+                        json.append(c);
+            }
+        }
+        return json.append("\"").toString();
+    }
+
+    /**
+     * Adds the time between its creation and close() to a stage
+     */
+    public class StageTimer implements AutoCloseable {
+        private final String stage;
+        private final long start = System.nanoTime();
+
+        private StageTimer(String stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public void close() {
+            addStageNanos(stage, System.nanoTime() - start);
+        }
+    }
+}
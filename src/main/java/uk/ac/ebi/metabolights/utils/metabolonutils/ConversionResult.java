@@ -0,0 +1,47 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+/**
+ * The outcome of converting one file in a batch
+ */
+public class ConversionResult {
+
+    private final String inputFile;
+    private final String outputFile;
+    private final Exception error;
+    private final long elapsedMillis;
+
+    public ConversionResult(String inputFile, String outputFile, Exception error, long elapsedMillis) {
+        this.inputFile = inputFile;
+        this.outputFile = outputFile;
+        this.error = error;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public String getInputFile() {
+        return inputFile;
+    }
+
+    public String getOutputFile() {
+        return outputFile;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * @return why the conversion failed, null if it succeeded
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return inputFile + (isSuccess() ? " -> " + outputFile : " FAILED: " + error) + " (" + elapsedMillis + " ms)";
+    }
+}
@@ -0,0 +1,363 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resident conversion service: workbooks are posted over HTTP, queued and converted by a fixed number of threads
+ * sharing one FileUtils, so the ChEBI client, the MAF configuration and the metabolite cache stay warm between jobs.
+ *
+ *   POST /jobs?name=MyStudy.xlsx   the workbook as the request body, 202 with the job, 503 when the queue is full
+ *   GET  /jobs                     all the jobs kept
+ *   GET  /jobs/{id}                the job status
+ *   GET  /jobs/{id}/output         the MAF file, once the job has succeeded
+ *   DELETE /jobs/{id}              forget a finished job and delete its files
+ *   GET  /health                   the number of queued, running and finished jobs
+ *
+ * Finished jobs are kept for a while so their output can be fetched, then they are forgotten and their workbook and
+ * MAF files are deleted, see {@link #setJobRetentionMillis(long)} and {@link #setMaxJobsKept(int)}.
+ */
+public class ConversionService implements Closeable {
+
+    private static final long evictionIntervalMillis = 60000;
+
+    private final BatchConverter batchConverter;
+    private final File inputDirectory;
+    private final File outputDirectory;
+    private final ThreadPoolExecutor executor;
+    private final HttpServer server;
+    private final ScheduledExecutorService evictor;
+    private final AtomicLong jobCount = new AtomicLong();
+    private final Map<String, ConversionJob> jobs = new LinkedHashMap<>(); //In submission order
+    private volatile long jobRetentionMillis = TimeUnit.HOURS.toMillis(24);
+    private volatile int maxJobsKept = 1000;
+
+    /**
+     * @param fileUtils, the configured converter, shared by all the jobs
+     * @param outputFormat, the MAF format of every job
+     * @param workDirectory, where the posted workbooks and the MAF files are kept
+     * @param port, the HTTP port, on all interfaces
+     * @param threads, the number of workbooks converted at the same time
+     * @param queueCapacity, the number of workbooks that can wait, more are refused with 503
+     */
+    public ConversionService(FileUtils fileUtils, BatchConverter.OutputFormat outputFormat, File workDirectory,
+                             int port, int threads, int queueCapacity) throws IOException {
+        this.inputDirectory = new File(workDirectory, "input");
+        this.outputDirectory = new File(workDirectory, "output");
+        inputDirectory.mkdirs();
+        outputDirectory.mkdirs();
+
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new ThreadPoolExecutor.AbortPolicy());
+        this.batchConverter = new BatchConverter(fileUtils, executor);
+        batchConverter.setOutputFormat(outputFormat);
+
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/jobs", this::handleJobs);
+        server.createContext("/health", this::handleHealth);
+        server.setExecutor(Executors.newFixedThreadPool(4)); //Uploads and downloads, not the conversions
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "conversion-service-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evictJobs, evictionIntervalMillis, evictionIntervalMillis, TimeUnit.MILLISECONDS);
+
+        warmUp(fileUtils);
+    }
+
+    /**
+     * Parse the configuration and start the ChEBI client before the first job, not during it
+     */
+    private static void warmUp(FileUtils fileUtils) {
+        long start = System.currentTimeMillis();
+        fileUtils.getMafConfiguration();
+        fileUtils.getSearchUtils().getChebiWS();
+        Log.info("Conversion service ready in "+(System.currentTimeMillis() - start)+" ms");
+    }
+
+    public void start() {
+        server.start();
+        Log.info("Conversion service listening on port "+getPort());
+    }
+
+    /**
+     * @return the HTTP port, the one picked by the system when the service was created with port 0
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public long getJobRetentionMillis() {
+        return jobRetentionMillis;
+    }
+
+    /**
+     * @param jobRetentionMillis, how long a finished job and its files are kept, from the end of its conversion
+     */
+    public void setJobRetentionMillis(long jobRetentionMillis) {
+        this.jobRetentionMillis = jobRetentionMillis;
+    }
+
+    public int getMaxJobsKept() {
+        return maxJobsKept;
+    }
+
+    /**
+     * @param maxJobsKept, the number of finished jobs kept, the oldest ones are forgotten first. Queued and running
+     * jobs are always kept
+     */
+    public void setMaxJobsKept(int maxJobsKept) {
+        this.maxJobsKept = maxJobsKept;
+    }
+
+    /**
+     * Queue a workbook that is already in the input directory
+     * @param id, the job id
+     * @param inputFile, the workbook
+     * @return the job, null if the queue is full
+     */
+    private ConversionJob submit(String id, File inputFile) {
+        ConversionJob job = new ConversionJob(id, inputFile, BatchConverter.getOutputFile(inputFile, outputDirectory,
+                batchConverter.getOutputFormat()));
+
+        evictJobs(); //Make room before taking more files
+        synchronized (jobs) {
+            jobs.put(id, job);
+        }
+
+        try {
+            executor.execute(() -> {
+                job.started();
+                job.finished(batchConverter.convert(job.getInputFile(), job.getOutputFile()));
+                Log.info("Job "+job.getId()+": "+job.getStatus());
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (jobs) {
+                jobs.remove(id);
+            }
+            return null;
+        }
+
+        return job;
+    }
+
+    public ConversionJob getJob(String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    /**
+     * Forget the finished jobs that are past the retention time, then the oldest finished jobs over the maximum
+     * number of jobs kept, and delete their files
+     */
+    void evictJobs() {
+        List<ConversionJob> evicted = new ArrayList<>();
+        long expiredBefore = System.currentTimeMillis() - jobRetentionMillis;
+        synchronized (jobs) {
+            int finished = 0;
+            for (ConversionJob job : jobs.values())
+                finished += job.isDone() ? 1 : 0;
+
+            Iterator<ConversionJob> iterator = jobs.values().iterator();
+            while (iterator.hasNext()) {
+                ConversionJob job = iterator.next();
+                if (job.isDone() && (job.getFinishedAt() < expiredBefore || finished > maxJobsKept)) {
+                    iterator.remove();
+                    evicted.add(job);
+                    finished--;
+                }
+            }
+        }
+
+        for (ConversionJob job : evicted)
+            deleteFiles(job);
+        if (!evicted.isEmpty())
+            Log.info("Forgot "+evicted.size()+" finished jobs");
+    }
+
+    /**
+     * Forget a finished job and delete its files
+     * @return false if the job is queued or running, it is not removed
+     */
+    boolean removeJob(ConversionJob job) {
+        synchronized (jobs) {
+            if (!job.isDone())
+                return false;
+            jobs.remove(job.getId());
+        }
+        deleteFiles(job);
+        return true;
+    }
+
+    private static void deleteFiles(ConversionJob job) {
+        for (File file : Arrays.asList(job.getInputFile(), job.getOutputFile(), ColumnarMafSink.getColumnarFile(job.getOutputFile())))
+            if (file.exists() && !file.delete())
+                Log.warn("Could not delete "+file+" of job "+job.getId());
+    }
+
+    private void handleJobs(HttpExchange exchange) throws IOException {
+        try {
+            String[] path = exchange.getRequestURI().getPath().replaceAll("^/jobs/?", "").split("/");
+            String method = exchange.getRequestMethod();
+
+            if (method.equals("POST") && path[0].isEmpty())
+                postJob(exchange);
+            else if (method.equals("GET") && path[0].isEmpty())
+                listJobs(exchange);
+            else if (method.equals("GET") && path.length == 1)
+                getJobStatus(exchange, getJob(path[0]));
+            else if (method.equals("GET") && path.length == 2 && path[1].equals("output"))
+                getJobOutput(exchange, getJob(path[0]));
+            else if (method.equals("DELETE") && path.length == 1 && !path[0].isEmpty())
+                deleteJob(exchange, getJob(path[0]));
+            else
+                send(exchange, 404, "{\"error\": \"Not found\"}");
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Could not handle "+exchange.getRequestURI()+": "+e);
+            if (exchange.getResponseCode() == -1) //Nothing sent yet
+                send(exchange, 500, "{\"error\": "+ConversionMetrics.jsonString(e.toString())+"}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void postJob(HttpExchange exchange) throws IOException {
+        if (executor.getQueue().remainingCapacity() == 0) { //Do not even read the workbook
+            exchange.getResponseHeaders().set("Retry-After", "30");
+            send(exchange, 503, "{\"error\": \"The queue is full\"}");
+            return;
+        }
+
+        String name = getQueryParameter(exchange, "name");
+        if (name == null || !(name.toLowerCase().endsWith(".xlsx") || name.toLowerCase().endsWith(".xls")
+                || MetabolonTextReader.isTextFile(name))) {
+            send(exchange, 400, "{\"error\": \"The name parameter must be the .xls, .xlsx, .csv, .tsv or .txt file name\"}");
+            return;
+        }
+
+        String id = Long.toString(System.currentTimeMillis(), 36) + Long.toString(jobCount.incrementAndGet(), 36);
+        File inputFile = new File(inputDirectory, id + "-" + name.replaceAll("[^A-Za-z0-9._]", "_"));
+        try (InputStream body = exchange.getRequestBody()) {
+            Files.copy(body, inputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        ConversionJob job = submit(id, inputFile);
+        if (job == null) {
+            inputFile.delete();
+            exchange.getResponseHeaders().set("Retry-After", "30");
+            send(exchange, 503, "{\"error\": \"The queue is full\"}");
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Location", "/jobs/" + job.getId());
+        send(exchange, 202, job.toJson());
+    }
+
+    private void listJobs(HttpExchange exchange) throws IOException {
+        StringJoiner json = new StringJoiner(",\n", "[\n", "\n]");
+        synchronized (jobs) {
+            jobs.values().forEach(job -> json.add(job.toJson()));
+        }
+        send(exchange, 200, json.toString());
+    }
+
+    private void getJobStatus(HttpExchange exchange, ConversionJob job) throws IOException {
+        if (job == null)
+            send(exchange, 404, "{\"error\": \"No such job\"}");
+        else
+            send(exchange, 200, job.toJson());
+    }
+
+    private void getJobOutput(HttpExchange exchange, ConversionJob job) throws IOException {
+        if (job == null) {
+            send(exchange, 404, "{\"error\": \"No such job\"}");
+            return;
+        }
+        if (job.getStatus() != ConversionJob.Status.SUCCEEDED) {
+            send(exchange, 409, job.toJson());
+            return;
+        }
+
+        File outputFile = job.getOutputFile();
+        exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + outputFile.getName() + "\"");
+        exchange.sendResponseHeaders(200, outputFile.length());
+        try (OutputStream body = exchange.getResponseBody()) {
+            Files.copy(outputFile.toPath(), body);
+        }
+    }
+
+    private void deleteJob(HttpExchange exchange, ConversionJob job) throws IOException {
+        if (job == null)
+            send(exchange, 404, "{\"error\": \"No such job\"}");
+        else if (!removeJob(job))
+            send(exchange, 409, job.toJson());
+        else
+            send(exchange, 200, job.toJson());
+    }
+
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        try {
+            int finished = 0;
+            synchronized (jobs) {
+                for (ConversionJob job : jobs.values())
+                    finished += job.isDone() ? 1 : 0;
+            }
+            send(exchange, 200, "{\"queued\": " + executor.getQueue().size() + ", \"running\": " + executor.getActiveCount()
+                    + ", \"finished\": " + finished + ", \"queueCapacity\": " + (executor.getQueue().size()
+                    + executor.getQueue().remainingCapacity()) + "}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String getQueryParameter(HttpExchange exchange, String parameter) throws UnsupportedEncodingException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null)
+            return null;
+
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0 && pair.substring(0, equals).equals(parameter))
+                return URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+        }
+        return null;
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Stop taking jobs and wait for the queued ones to finish
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        evictor.shutdown();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ((ExecutorService) server.getExecutor()).shutdown();
+    }
+}
@@ -0,0 +1,169 @@
+
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+public class ExcelReader {
+
+    static final String filename = "MetabolonPeakAreaTable-small.xlsx";
+    //static final String filename = "MetabolonPeakAreaTable-complete.xlsx";
+    static final String usage = "ExcelReader [--resume] <Metabolon file or directory> [output directory]";
+
+    static final String cacheFile = "metabolite_cache.tsv";
+    static final String unresolvedFile = "unresolved_compounds.tsv"; //Compounds the web services failed on, retried on the next run
+
+    public static void main(String[] args) {
+
+        FileUtils fileUtils = new FileUtils();
+
+        //--resume carries on with the conversions that did not finish, from their journals
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        fileUtils.setResume(arguments.remove("--resume"));
+        fileUtils.setCheckpointing(!Boolean.getBoolean("metabolon.no.checkpoints"));
+        fileUtils.setWriteColumnarExport(Boolean.getBoolean("metabolon.columnar.export")); //A .mafc file next to each MAF
+
+        long lookupTimeout = Long.getLong("metabolon.lookup.timeout", ResilientMetaboliteLookup.DEFAULT_TIMEOUT);
+        try (ChebiIndex chebiIndex = openChebiIndex(fileUtils.getSearchUtils());
+             ResilientMetaboliteLookup resilientLookup = new ResilientMetaboliteLookup(fileUtils.getSearchUtils(), lookupTimeout,
+                ResilientMetaboliteLookup.DEFAULT_MAX_ATTEMPTS, ResilientMetaboliteLookup.DEFAULT_BACKOFF,
+                ResilientMetaboliteLookup.DEFAULT_FAILURE_THRESHOLD, ResilientMetaboliteLookup.DEFAULT_OPEN_MILLIS);
+             MetaboliteCache cache = new MetaboliteCache(resilientLookup, new File(cacheFile))) {
+            fileUtils.setMetaboliteLookup(cache);
+            retryUnresolved(cache);
+
+            fileUtils.setWriteAnnotatedSheet(Boolean.getBoolean("metabolon.annotated.sheet"));
+
+            String reportDirectory = System.getProperty("metabolon.report.dir"); //JSON run reports, off by default
+            if (reportDirectory != null)
+                fileUtils.addMetricsSink(new JsonReportSink(new File(reportDirectory)));
+
+            String servicePort = System.getProperty("metabolon.service.port");
+            if (servicePort != null) { // Resident service, see ConversionService
+                runService(fileUtils, Integer.parseInt(servicePort));
+            } else if (!arguments.isEmpty()) { // ExcelReader [--resume] <Metabolon file or directory> [output directory]
+                File input = new File(arguments.get(0));
+                File outputDirectory = new File(arguments.size() > 1 ? arguments.get(1) : ".");
+
+                try (BatchConverter batchConverter = new BatchConverter(fileUtils, Runtime.getRuntime().availableProcessors())) {
+                    String outputFormat = System.getProperty("metabolon.output.format"); //workbook, maf_xlsx, tsv or tsv_gz
+                    if (outputFormat != null)
+                        batchConverter.setOutputFormat(BatchConverter.OutputFormat.valueOf(outputFormat.toUpperCase()));
+                    batchConverter.setIncremental(Boolean.getBoolean("metabolon.incremental"));
+                    String assayConfigurations = System.getProperty("metabolon.assay.configs"); //Comma separated, one MAF for each
+                    if (assayConfigurations != null)
+                        batchConverter.setAssayConfigurations(Arrays.asList(assayConfigurations.split("\\s*,\\s*")));
+
+                    List<ConversionResult> results = input.isDirectory() ?
+                            batchConverter.convertDirectory(input, outputDirectory) :
+                            batchConverter.convertAll(Collections.singletonList(input), outputDirectory);
+                    results.forEach(result -> Log.info(result.toString()));
+                }
+            } else { // No arguments, convert the sample workbook
+                fileUtils.convertExcelFile(getSampleFile());
+            }
+
+            resilientLookup.writeUnresolved(new File(unresolvedFile));
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InvalidFormatException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * @return the sample workbook converted when no file is given, from the classpath
+     */
+    static String getSampleFile() throws FileNotFoundException {
+        URL sampleFile = ExcelReader.class.getClassLoader().getResource(filename);
+        if (sampleFile == null)
+            throw new FileNotFoundException("No Metabolon file given and no "+filename+" on the classpath. Usage: "+usage);
+        return sampleFile.getFile();
+    }
+
+    /**
+     * Resolve compounds with the local ChEBI index set with -Dmetabolon.chebi.index, in the lookup mode set with
+     * -Dmetabolon.chebi.mode: offline, offline_then_online (the default with an index) or online
+     * @return the index, null if there is none
+     */
+    private static ChebiIndex openChebiIndex(SearchUtils searchUtils) throws IOException {
+        String indexFile = System.getProperty("metabolon.chebi.index"); //Built by ChebiIndexBuilder
+        String lookupMode = System.getProperty("metabolon.chebi.mode");
+        if (indexFile == null) {
+            if (lookupMode != null && !lookupMode.equalsIgnoreCase(SearchUtils.LookupMode.ONLINE.name()))
+                Log.warn("-Dmetabolon.chebi.mode="+lookupMode+" needs a ChEBI index (-Dmetabolon.chebi.index), resolving compounds online");
+            return null;
+        }
+
+        ChebiIndex chebiIndex = ChebiIndex.open(new File(indexFile));
+        searchUtils.setChebiIndex(chebiIndex);
+        searchUtils.setLookupMode(lookupMode != null ? SearchUtils.LookupMode.valueOf(lookupMode.toUpperCase()) :
+                SearchUtils.LookupMode.OFFLINE_THEN_ONLINE);
+        Log.info("Resolving compounds with the ChEBI index "+indexFile+" ("+chebiIndex.getRecordCount()+" compounds), "+searchUtils.getLookupMode());
+        return chebiIndex;
+    }
+
+    /**
+     * Resolve the compounds the web services failed on in the previous run, so they are in the cache for this one
+     */
+    private static void retryUnresolved(MetaboliteCache cache) throws IOException {
+        List<LookupKey> keys = ResilientMetaboliteLookup.readUnresolved(new File(unresolvedFile));
+        if (keys.isEmpty())
+            return;
+
+        Log.info("Resolving "+keys.size()+" compounds left unresolved by the previous run");
+        try {
+            cache.resolveAll(keys);
+        } catch (ResilientMetaboliteLookup.LookupUnavailableException e) {
+            Log.warn("The metabolite web services are still failing: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Run the conversion service until the JVM is stopped, then let the queued jobs finish
+     */
+    private static void runService(FileUtils fileUtils, int port) throws IOException {
+        String outputFormat = System.getProperty("metabolon.output.format", "tsv");
+        File workDirectory = new File(System.getProperty("metabolon.service.dir", "metabolon-service"));
+        int threads = Integer.getInteger("metabolon.service.threads", Runtime.getRuntime().availableProcessors());
+        int queueCapacity = Integer.getInteger("metabolon.service.queue", 100);
+        fileUtils.setCheckpointing(false); //A failed job is posted again, there is nothing to resume
+
+        ConversionService service = new ConversionService(fileUtils,
+                BatchConverter.OutputFormat.valueOf(outputFormat.toUpperCase()), workDirectory, port, threads, queueCapacity);
+        service.setJobRetentionMillis(TimeUnit.MINUTES.toMillis(Long.getLong("metabolon.service.retention.minutes", 24 * 60)));
+        service.setMaxJobsKept(Integer.getInteger("metabolon.service.max.jobs", 1000));
+        CountDownLatch stopped = new CountDownLatch(1);
+        Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            service.close();
+            stopped.countDown();
+            try {
+                mainThread.join(); //Let main close the metabolite cache
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+
+        service.start();
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+
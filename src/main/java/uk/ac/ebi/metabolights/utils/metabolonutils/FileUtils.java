@@ -2,27 +2,31 @@ package uk.ac.ebi.metabolights.utils.metabolonutils;
 
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 import org.apache.poi.ss.usermodel.*;
-import org.apache.xmlbeans.XmlException;
-import org.isatools.isacreator.configuration.io.ConfigXMLParser;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.isatools.isacreator.spreadsheet.model.TableReferenceObject;
-import org.isatools.isatab.configurator.schema.IsaTabConfigurationType;
-import org.isatools.isatab.configurator.schema.IsatabConfigFileDocument;
 import org.isatools.plugins.metabolights.assignments.model.Metabolite;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Vector;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
-
-import static org.apache.poi.ss.usermodel.CellType.NUMERIC;
-import static org.apache.poi.ss.usermodel.CellType.STRING;
-
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts Metabolon peak area workbooks to MetaboLights MAF files.
+ * All per-file state is kept in a ConversionContext, so once configured a FileUtils can convert several files at
+ * the same time, see {@link BatchConverter}.
+ * The conversion stages are package-private so they can be benchmarked one by one, see the jmh module.
+ */
 public class FileUtils {
 
     private static String configPath = "." + File.separator + "metabolomics_configuration" + File.separator;
     private static String configFile = configPath + "configuration_ms.xml";
-    private static String configurationFile = FileUtils.class.getClassLoader().getResource(configFile).getFile();
+    private static String defaultConfigurationFile = FileUtils.class.getClassLoader().getResource(configFile).getFile();
 
     private final static String sampleNameAnnotation = "SAMPLE_NAME";
     private final static String clientIdAnnotation = "CLIENT_IDENTIFIER";
@@ -33,439 +37,941 @@ public class FileUtils {
     private final static String MAFSheetName = "MAF Data";
     private final static String metabolonSheetName = "Metabolon Data";
     private final static String annotatedSheetName = "Annotated Data";
-    private static int lastCellNumber = 0;
-    private static int metaboliteCellPos = 1;
+    public final static String defaultOutputFile = "MetabolonPeakAreaTable_MAF.xlsx";
+    private final static int streamingRowWindow = 100; //Number of MAF rows kept in memory when streaming
 
+    private String configurationFile = defaultConfigurationFile;
     private SearchUtils searchUtils = new SearchUtils();
+    private MetaboliteLookup metaboliteLookup = searchUtils;
+    private int maxConcurrentLookups = 4;
+    private double lookupsPerSecond = 10;
+    private int lookupBatchSize = 25;
+    private boolean writeAnnotatedSheet = false;
+    private boolean checkpointing = false;
+    private boolean resume = false;
+    private boolean writeColumnarExport = false;
+    private MetabolonColumnMapping columnMapping = MetabolonColumnMapping.defaultMapping();
+    private MafRowMaterializer mafRowMaterializer = new MafRowMaterializer(Runtime.getRuntime().availableProcessors());
+    private final List<MetricsSink> metricsSinks = new CopyOnWriteArrayList<>();
+
+    public MetaboliteLookup getMetaboliteLookup() {
+        return metaboliteLookup;
+    }
 
-    public static int getLastCellNumber() {
-        return lastCellNumber;
+    /**
+     * Change how compounds are resolved, e.g. to put a MetaboliteCache in front of the web services
+     * @param metaboliteLookup
+     */
+    public void setMetaboliteLookup(MetaboliteLookup metaboliteLookup) {
+        this.metaboliteLookup = metaboliteLookup;
     }
 
-    public static void setLastCellNumber(int lastCellNumber) {
-        FileUtils.lastCellNumber = lastCellNumber;
+    public SearchUtils getSearchUtils() {
+        return searchUtils;
     }
 
-    public TableReferenceObject getMSConfig() {
-        return getConfiguration();
+    public int getMaxConcurrentLookups() {
+        return maxConcurrentLookups;
     }
 
-    public void convertExcelFile(String fileName) throws IOException, InvalidFormatException {
-        // Creating a Workbook from an Excel file (.xls or .xlsx)
-        System.out.println("Creating a cloned sheet for annotations, renaming the existing sheet to '"+metabolonSheetName+"'");
-        Workbook workbook = WorkbookFactory.create(new File(fileName));
-        Sheet sheet = workbook.getSheetAt(0);
-        Row row = sheet.getRow(0);
-        System.out.println("The original sheet has "+sheet.getPhysicalNumberOfRows() +" number of rows and "+row.getLastCellNum()+" number of columns. This results in a matrix of "+ sheet.getPhysicalNumberOfRows()*row.getLastCellNum() +" cells");
-        workbook.setSheetName(workbook.getSheetIndex(sheet), metabolonSheetName);
-        workbook.cloneSheet(0); //Copy the existing sheet at position 0
+    /**
+     * @param maxConcurrentLookups, the number of compounds resolved at the same time, 1 to resolve them one by one
+     */
+    public void setMaxConcurrentLookups(int maxConcurrentLookups) {
+        this.maxConcurrentLookups = maxConcurrentLookups;
+    }
+
+    public double getLookupsPerSecond() {
+        return lookupsPerSecond;
+    }
 
-        //Retrieving the cloned worksheet
-        Sheet clonedMetabolonSheet = workbook.getSheetAt(1);   //Sheet 0 is the original data from Metabolon, so 1 is the cloned sheet
-        System.out.println("Renaming the cloned sheet to '"+annotatedSheetName+"'");
-        workbook.setSheetName(workbook.getSheetIndex(clonedMetabolonSheet), annotatedSheetName);
+    /**
+     * @param lookupsPerSecond, the maximum number of compound lookups (batches) started per second, zero or less for no limit
+     */
+    public void setLookupsPerSecond(double lookupsPerSecond) {
+        this.lookupsPerSecond = lookupsPerSecond;
+    }
 
-        //Annotate each row with the row type
-        System.out.println("Annotate each row with the row type");
-        annotateMetabolonSheet(clonedMetabolonSheet);
+    public int getLookupBatchSize() {
+        return lookupBatchSize;
+    }
 
-        //Duplicate and split all rows that has "/" in the compound name
-        System.out.println("Duplicate and split all rows that has '/' in the compound name");
-        duplicateMetabolonRows(clonedMetabolonSheet);
+    /**
+     * @param lookupBatchSize, the number of compounds handed to the MetaboliteLookup at a time
+     */
+    public void setLookupBatchSize(int lookupBatchSize) {
+        this.lookupBatchSize = lookupBatchSize;
+    }
 
-        // Create the new sheet for MAF
-        System.out.println("Create the new sheet for MAF");
-        Sheet newSheet = addStandardHeaderRow(workbook);
-        newSheet = addSampleHeaderRow(newSheet, clonedMetabolonSheet);
-        System.out.println("Add Metabolon data to the MAF sheet");
-        addMetabolonData(newSheet, clonedMetabolonSheet);
+    public int getMafParallelism() {
+        return mafRowMaterializer.getParallelism();
+    }
 
-        // Write the output to a new Excel file
-        FileOutputStream fileOut = new FileOutputStream("MetabolonPeakAreaTable_MAF.xlsx");
-        workbook.write(fileOut);
-        fileOut.close();
+    /**
+     * @param mafParallelism, the number of threads building the MAF rows, 1 to build them in the converting thread.
+     * The rows are always written in order, the output does not depend on it
+     */
+    public void setMafParallelism(int mafParallelism) {
+        mafRowMaterializer.shutdown();
+        mafRowMaterializer = new MafRowMaterializer(mafParallelism);
+    }
 
-        // Closing the workbook
-        workbook.close();
+    public boolean isWriteAnnotatedSheet() {
+        return writeAnnotatedSheet;
     }
 
-    private void annotateMetabolonSheet(Sheet clonedMetabolonSheet){
-        //Annotation rows from the original Metabolon sheet
-        clonedMetabolonSheet.forEach(row -> {
-            int rowNum = row.getRowNum();
-            System.out.println("Annotating row: "+rowNum);
-            annotateMetabolonData(row, rowNum);
-        });
+    /**
+     * @param writeAnnotatedSheet, add the "Annotated Data" sheet to the workbooks created by
+     * {@link #convertExcelFile(String, String)}. The MAF does not need it, it is only there to check the row types and splits
+     */
+    public void setWriteAnnotatedSheet(boolean writeAnnotatedSheet) {
+        this.writeAnnotatedSheet = writeAnnotatedSheet;
     }
 
-    private void duplicateMetabolonRows(Sheet annotatedMetabolonSheet){
-        //Duplicate rows in the annoted Metabolon sheet
-        ArrayList<Integer> dupRows = rowsToDuplicate(annotatedMetabolonSheet);
+    public boolean isCheckpointing() {
+        return checkpointing;
+    }
 
-        AtomicInteger additionalRowsToMove = new AtomicInteger();
-        dupRows.forEach(row -> {
-            System.out.println("Duplicating row "+row);
-            copyRows(annotatedMetabolonSheet, row+ additionalRowsToMove.getAndIncrement());
-        });
+    /**
+     * @param checkpointing, journal the resolved compounds of every conversion next to its output file, so a
+     * conversion that fails can be resumed, see {@link ConversionJournal}
+     */
+    public void setCheckpointing(boolean checkpointing) {
+        this.checkpointing = checkpointing;
     }
 
-    protected void copyRows(Sheet worksheet, int rowNum) {
-        Row sourceRow = worksheet.getRow(rowNum);
-        worksheet.shiftRows(rowNum, worksheet.getLastRowNum(), 1);  //Now the source row is at rowNum+1
-        Row newRow = worksheet.createRow(rowNum);
+    public boolean isResume() {
+        return resume;
+    }
 
-        // Loop through source columns to add to new row
-        for (int i = 0; i < sourceRow.getLastCellNum(); i++) {
-            Cell oldCell = sourceRow.getCell(i, Row.MissingCellPolicy.CREATE_NULL_AS_BLANK); //The cell we are reading the data from. If the cell us null, return a blank value
-            Cell newCell = newRow.createCell(i); //New empty cell to put the data into
+    /**
+     * @param resume, replay the journal left by a conversion of the same file that did not finish, only the
+     * compounds that are not in it are resolved. Needs checkpointing
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
 
-            // Copy style from old cell and apply to new cell
-            CellStyle cellStyle = oldCell.getCellStyle();
-            if (cellStyle != null) {
-                CellStyle newCellStyle = worksheet.getWorkbook().createCellStyle();
-                newCellStyle.cloneStyleFrom(cellStyle);
-                newCell.setCellStyle(newCellStyle);
-            }
+    public boolean isWriteColumnarExport() {
+        return writeColumnarExport;
+    }
 
-            // Set the cell data value
-            switch (oldCell.getCellTypeEnum()) {
-                case BLANK: break;
-                case BOOLEAN: newCell.setCellValue(oldCell.getBooleanCellValue()); break;
-                case ERROR: newCell.setCellErrorValue(oldCell.getErrorCellValue()); break;
-                case NUMERIC: newCell.setCellValue(oldCell.getNumericCellValue()); break;
-                case STRING:
-                    String metabolite = sourceRow.getCell(i).getRichStringCellValue().toString();
-                    newCell.setCellValue(metabolite);   //First, set the new value
-                    if (metabolite.contains("/") && i == 1) {  // The metabolite name is always in position 1 (2nd column in the sheet)
-                        String[] metabolites = extractMetabolites(metabolite);
-                        if (metabolites.length == 2) {
-                            newCell.setCellValue(metabolites[0]); //1st metabolite name
-                            oldCell.setCellValue(metabolites[1]); //2ns metabolite name
-                        }
-                    } else {
-                        newCell.setCellValue(sourceRow.getCell(i).getRichStringCellValue());
-                    }
-                    break;
-                default: break;
-            }
-        }
+    /**
+     * @param writeColumnarExport, also write every MAF as a columnar binary file (.mafc) next to it, for analysis
+     * tools that memory-map it, see {@link ColumnarMafSink}. Not for the incremental conversions, they copy the
+     * unchanged MAF lines as text
+     */
+    public void setWriteColumnarExport(boolean writeColumnarExport) {
+        this.writeColumnarExport = writeColumnarExport;
+    }
+
+    public MetabolonColumnMapping getColumnMapping() {
+        return columnMapping;
+    }
+
+    /**
+     * @param columnMapping, the Metabolon HEADERS and MAF column names, for Metabolon layouts with other column names
+     */
+    public void setColumnMapping(MetabolonColumnMapping columnMapping) {
+        this.columnMapping = columnMapping;
+    }
+
+    public String getConfigurationFile() {
+        return configurationFile;
+    }
+
+    /**
+     * Use another MAF configuration, e.g. when the bundled one can not be read as a file from inside a jar
+     * @param configurationFile, path to the configuration XML
+     */
+    public void setConfigurationFile(String configurationFile) {
+        this.configurationFile = configurationFile;
+    }
+
+    /**
+     * @param metricsSink, receives the metrics of every conversion, e.g. a JsonReportSink
+     */
+    public void addMetricsSink(MetricsSink metricsSink) {
+        metricsSinks.add(metricsSink);
+    }
+
+    public TableReferenceObject getMSConfig() {
+        MafConfiguration mafConfiguration = getMafConfiguration();
+        return mafConfiguration != null ? mafConfiguration.getTableReferenceObject() : null;
+    }
+
+    /**
+     * @return the MS configuration, parsed once and shared by all conversions
+     */
+    public MafConfiguration getMafConfiguration() {
+        return getMafConfiguration(configurationFile);
+    }
+
+    /**
+     * @param configurationFile, an ISA assay configuration, e.g. for NMR
+     * @return the configuration, parsed once and shared by all conversions. Null if it could not be parsed
+     */
+    public MafConfiguration getMafConfiguration(String configurationFile) {
+        return ConfigRegistry.getInstance().getConfiguration(configurationFile);
     }
 
-    private String[] extractMetabolites(String metabolite){
-        String[] metabolites = null;
-        int slashPos = 0, startPos = 0, endPos = 0;
+    public void convertExcelFile(String fileName) throws IOException, InvalidFormatException {
+        convertExcelFile(fileName, defaultOutputFile);
+    }
 
-        if (metabolite.contains("/"))
-            slashPos = metabolite.indexOf("/");
+    /**
+     * Convert a Metabolon workbook, writing the Metabolon and MAF sheets, and the annotated sheet if asked for, to a
+     * new workbook
+     * @param fileName, the Metabolon .xls or .xlsx file
+     * @param outputFileName, the .xlsx file to create
+     */
+    public void convertExcelFile(String fileName, String outputFileName) throws IOException, InvalidFormatException {
+        if (MetabolonTextReader.isTextFile(fileName)) {
+            Log.info(fileName+" is a text export, there is no Metabolon sheet to copy, only the MAF sheet is written");
+            convertExcelFileStreaming(fileName, outputFileName);
+            return;
+        }
 
-        if (metabolite.contains("(")) {
-            startPos = metabolite.indexOf("(");
-            endPos = metabolite.indexOf(")");
+        ConversionContext context = new ConversionContext(fileName, outputFileName);
+        ConversionMetrics metrics = context.getMetrics();
+
+        // Creating a Workbook from an Excel file (.xls or .xlsx)
+        Log.info("Renaming the existing sheet to '"+metabolonSheetName+"'");
+        Workbook workbook;
+        try (ConversionMetrics.StageTimer timer = metrics.time("read")) {
+            workbook = WorkbookFactory.create(new File(fileName));
         }
+        Sheet sheet = workbook.getSheetAt(0);
+        Row row = sheet.getRow(0);
+        Log.info("The original sheet has "+sheet.getPhysicalNumberOfRows() +" number of rows and "+row.getLastCellNum()+" number of columns. This results in a matrix of "+ sheet.getPhysicalNumberOfRows()*row.getLastCellNum() +" cells");
+        workbook.setSheetName(workbook.getSheetIndex(sheet), metabolonSheetName);
 
+        //Each row gets its row type from its position, and the rows that have "/" in the compound name are split
+        //while reading. The Metabolon sheet itself is not changed
+        MetabolonTable table;
+        try (ConversionMetrics.StageTimer timer = metrics.time("annotate")) {
+            table = readMetabolonSheet(sheet, metrics);
+        }
 
-        if (startPos == 0) // No lipids reported, safe to split using "/"
-            return metabolite.split("/");
+        if (writeAnnotatedSheet) {
+            Log.info("Create the '"+annotatedSheetName+"' sheet, annotating each row with the row type and splitting compounds");
+            try (ConversionMetrics.StageTimer timer = metrics.time("annotatedSheet")) {
+                createAnnotatedSheet(workbook, sheet);
+            }
+        }
 
-        //Ignore this pattern "( / )" as this is a lipid
-        //Do not split lipids if they use slash in the naming
-        //replace "/" with "#" so we can split on # only
-        if (slashPos < startPos && slashPos < endPos){ // Lipid in position 2    ( "compound/lipid(1:2/2:1)" )
-            metabolite = metabolite.replace("/","#");
+        // Create the new sheet for MAF
+        Log.info("Create the new sheet for MAF");
+        try (MafSink mafSink = withColumnarExport(new XlsxMafSink(workbook.createSheet(MAFSheetName)), context)) {
+            mafSink.writeHeader(getMafHeaders(table.getSampleNames(), context));
+            Log.info("Add Metabolon data to the MAF sheet");
+            addMetabolonData(mafSink, table, context);
+        }
 
-        } else if (slashPos > startPos && slashPos > endPos){ // Lipid in position 1 ( "lipid(1:2/2:1)/compound" )
-            metabolite = metabolite.replace(")/",")#");
+        // Write the output to a new Excel file
+        try (ConversionMetrics.StageTimer timer = metrics.time("write")) {
+            FileOutputStream fileOut = new FileOutputStream(context.getOutputFile());
+            workbook.write(fileOut);
+            fileOut.close();
         }
 
-        return metabolite.split("#");
+        // Closing the workbook
+        workbook.close();
+        completeConversion(context);
+        publishMetrics(context);
     }
 
+    /**
+     * Convert a Metabolon workbook without loading the workbook. The first sheet is read with the POI event API into
+     * a MetabolonTable, which is held in memory: the compound columns and a double per compound and sample, not the
+     * POI cells. Only the "MAF Data" sheet is written, through a SXSSFWorkbook that keeps a bounded window of rows in
+     * memory. The MAF rows are the same as the ones created by {@link #convertExcelFile(String)}
+     * @param fileName, the Metabolon .xlsx file (an .xls file is loaded, it has no XML to stream)
+     * @param outputFileName, the MAF .xlsx file to create
+     */
+    public void convertExcelFileStreaming(String fileName, String outputFileName) throws IOException, InvalidFormatException {
+        Log.info("Streaming the Metabolon sheet in "+fileName+" to the '"+MAFSheetName+"' sheet in "+outputFileName);
+        ConversionContext context = new ConversionContext(fileName, outputFileName);
+        ConversionMetrics metrics = context.getMetrics();
+        SXSSFWorkbook workbook = new SXSSFWorkbook(streamingRowWindow);
 
-    private ArrayList<Integer> rowsToDuplicate(Sheet annoatedSheet){
-        ArrayList<Integer> dupRows = new ArrayList<>();
+        try {
+            MetabolonTable table = readMetabolonTable(fileName, metrics);
 
-        annoatedSheet.forEach( row -> {
-            row.forEach(cell -> {
-                if (cell.getColumnIndex() == metaboliteCellPos ) {
-                    String textValue = cell.getRichStringCellValue().getString();
-
-                    if (textValue.contains("/") && !textValue.contains("(")){
-                        dupRows.add(cell.getRowIndex()); //Simple split as there are no brackets
-                        System.out.println(" - Compound at row "+ row.getRowNum() +" needs splitting: "+ textValue);
-                    }  else if (textValue.contains("/") && textValue.contains("(")) {  //Ok, a more complicated split
-
-                        //Let's map out where the brackets and slashes are
-                        String charPos ="";
-                        for(int i = 0, n = textValue.length() ; i < n ; i++) {
-                            switch (textValue.charAt(i)) {
-                                case '/':  charPos = charPos + "/"; break;
-                                case '(':  charPos = charPos + "("; break;
-                                case ')':  charPos = charPos + ")"; break;
-                            }
-                        }
-
-                        String noEmptyBrackets = charPos.replaceAll("\\(\\)","");
-                        if (noEmptyBrackets.equals("/")) {  //After removing empty brackets (), we are left with slashes that divide two compounds
-                            dupRows.add(cell.getRowIndex());
-                            System.out.println(" - Compound at row "+ row.getRowNum() +" needs splitting: "+ textValue);
-                        } else {
-                            System.out.println(" - Compound at row "+ row.getRowNum() +" should not be split: "+ textValue);
-                        }
+            try (MafSink mafSink = withColumnarExport(new XlsxMafSink(workbook.createSheet(MAFSheetName)), context)) {
+                mafSink.writeHeader(getMafHeaders(table.getSampleNames(), context));
+                addMetabolonData(mafSink, table, context);
+            }
+            Log.info("Added "+context.getMafRowCount()+" rows to the MAF sheet");
 
-                    }
-                }
-            });
-        });
+            try (ConversionMetrics.StageTimer timer = metrics.time("write");
+                 FileOutputStream fileOut = new FileOutputStream(context.getOutputFile())) {
+                workbook.write(fileOut);
+            }
+        } finally {
+            workbook.dispose(); //Remove the temporary files backing the flushed rows
+            workbook.close();
+        }
 
-        return dupRows;
+        completeConversion(context);
+        publishMetrics(context);
     }
 
-    private Sheet addStandardHeaderRow(Workbook workbook){
-        Sheet newSheet = workbook.createSheet(MAFSheetName);
-        Row headerRow = newSheet.createRow(0);
-        TableReferenceObject mafTable = getMSConfig();  //Header values from the config file
+    /**
+     * Convert a Metabolon workbook straight to a tab separated MAF file. No workbook is created: the
+     * Metabolon sheet is read into a MetabolonTable and the MAF rows are written to a buffered stream one by one
+     * @param fileName, the Metabolon .xls or .xlsx file
+     * @param outputFileName, the MAF file to create, gzipped if the name ends with .gz
+     */
+    public void convertToTsv(String fileName, String outputFileName) throws IOException, InvalidFormatException {
+        Log.info("Writing the MAF for "+fileName+" to "+outputFileName);
+        ConversionContext context = new ConversionContext(fileName, outputFileName);
+        MetabolonTable table = readMetabolonTable(fileName, context.getMetrics());
+
+        try (MafSink mafSink = withColumnarExport(new TsvMafSink(new File(context.getOutputFile())), context)) {
+            mafSink.writeHeader(getMafHeaders(table.getSampleNames(), context));
+            addMetabolonData(mafSink, table, context);
+        }
+        Log.info("Added "+context.getMafRowCount()+" rows to the MAF file");
+
+        completeConversion(context);
+        publishMetrics(context);
+    }
 
-        Vector<String> standardHeaders =  mafTable.getHeaders(); //Get all the headers from the config file
-        for (int i = 0; i < standardHeaders.size(); i++) {
-            if (i>0)  //Skip the first row as this only has the row-number ("Row No.")
-                headerRow.createCell(i-1).setCellValue(standardHeaders.get(i));
+    /**
+     * Convert a Metabolon workbook to one tab separated MAF per ISA assay configuration, e.g. MS and NMR. The
+     * Metabolon sheet is read and the compounds are resolved once for all the MAF files, then the MAF files are
+     * written at the same time. Each MAF has the columns of its configuration, the compound values go to the columns
+     * with the same names, see {@link MetabolonColumnMapping}
+     * @param fileName, the Metabolon .xls or .xlsx file
+     * @param outputFileNames, the MAF file to create for each configuration file, gzipped if the name ends with .gz.
+     * The run report and the journal are named after the first one
+     */
+    public void convertToTsv(String fileName, Map<String, String> outputFileNames) throws IOException, InvalidFormatException {
+        Log.info("Writing "+outputFileNames.size()+" MAF files for "+fileName+" to "+String.join(", ", outputFileNames.values()));
+        //The run is reported, and journaled, under the first MAF file: the metrics are for all of them
+        ConversionContext context = new ConversionContext(fileName, outputFileNames.values().iterator().next());
+        ConversionMetrics metrics = context.getMetrics();
+
+        //Check all the configurations before the slow part
+        Map<String, MafConfiguration> mafConfigurations = new LinkedHashMap<>();
+        for (String assayConfigurationFile : outputFileNames.keySet()) {
+            MafConfiguration mafConfiguration = getMafConfiguration(assayConfigurationFile);
+            if (mafConfiguration == null)
+                throw new IOException("Could not read the configuration "+assayConfigurationFile);
+            mafConfigurations.put(assayConfigurationFile, mafConfiguration);
         }
 
-        return newSheet;
+        MetabolonTable table = readMetabolonTable(fileName, metrics);
+        resolveCompounds(table, context);
+
+        ExecutorService executor = Executors.newFixedThreadPool(outputFileNames.size());
+        try (ConversionMetrics.StageTimer timer = metrics.time("maf")) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Map.Entry<String, MafConfiguration> mafConfiguration : mafConfigurations.entrySet()) {
+                ConversionContext assayContext = new ConversionContext(fileName, outputFileNames.get(mafConfiguration.getKey()));
+                assayContext.setResolvedMetabolites(context.getResolvedMetabolites());
 
+                futures.add(executor.submit(() -> {
+                    try (MafSink mafSink = withColumnarExport(new TsvMafSink(new File(assayContext.getOutputFile())), assayContext)) {
+                        mafSink.writeHeader(getMafHeaders(mafConfiguration.getValue(), table.getSampleNames(), assayContext));
+                        writeMafRows(mafSink, table, assayContext);
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the MAF files of "+fileName, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IllegalStateException("Could not write the MAF files of "+fileName, e.getCause());
+        } finally {
+            executor.shutdownNow(); //Stops the other MAF files when one fails
+        }
+        context.addMafRowCount(table.getCompoundCount()); //Compounds, not rows in all the files
+        Log.info("Added "+table.getCompoundCount()+" rows to each of the "+outputFileNames.size()+" MAF files");
+
+        completeConversion(context);
+        publishMetrics(context);
     }
 
-    private Sheet addSampleHeaderRow(Sheet newSheet, Sheet metabolonSheet){
-        Row headerRow = newSheet.getRow(0); //The header row is at the top of the sheet
-        ArrayList<String> sampleColumns = new ArrayList<String>();
+    /**
+     * Convert a revised Metabolon delivery to a MAF file that was converted before, redoing only what changed. The
+     * manifest of the previous conversion ({@link ConversionManifest}) tells which compounds are new and which rows
+     * have changed: only the new and the unresolved compounds are resolved, and the rows that did not change are
+     * copied from the previous MAF file as they are. Without a manifest, or when the MAF columns have changed, every
+     * row is written again, but the compounds that were resolved before still are not looked up.
+     * @param fileName, the Metabolon .xls or .xlsx file
+     * @param outputFileName, the MAF file to create or update, gzipped if the name ends with .gz
+     */
+    public void convertToTsvIncremental(String fileName, String outputFileName) throws IOException, InvalidFormatException {
+        ConversionContext context = new ConversionContext(fileName, outputFileName);
+        ConversionMetrics metrics = context.getMetrics();
+        MetabolonTable table = readMetabolonTable(fileName, metrics);
+        List<String> headers = getMafHeaders(table.getSampleNames(), context);
+
+        File outputFile = new File(outputFileName);
+        File manifestFile = ConversionManifest.getManifestFile(outputFile);
+        ConversionManifest previous = outputFile.exists() ? ConversionManifest.load(manifestFile) : null;
+        List<String> previousLines = null;
+        if (previous != null && previous.getHeaders().equals(headers)) {
+            previousLines = TsvMafSink.readLines(outputFile);
+            if (previousLines.size() != previous.size() + 1)
+                previousLines = null; //The MAF file was changed after the conversion
+        }
+        Log.info("Updating the MAF for "+fileName+" in "+outputFileName+(previous == null ? ", no previous conversion" :
+                previousLines == null ? ", the MAF columns have changed" : ""));
+
+        //Only resolve the compounds that were not in the previous delivery, or were not resolved then
+        String[] keys = ConversionManifest.getCompoundKeys(table);
+        Map<LookupKey, Metabolite> resolved = new HashMap<>();
+        Set<LookupKey> lookupKeys = new LinkedHashSet<>();
+        for (int compound = 0; compound < table.getCompoundCount(); compound++) {
+            LookupKey lookupKey = table.getLookupKey(compound);
+            if (lookupKey == null)
+                continue;
+
+            ConversionManifest.Entry entry = previous != null ? previous.get(keys[compound]) : null;
+            Metabolite met = entry != null ? entry.toMetabolite() : null;
+            if (met != null)
+                resolved.put(lookupKey, met);
+            else
+                lookupKeys.add(lookupKey);
+        }
+        lookupKeys.removeAll(resolved.keySet());
+        try (ConversionMetrics.StageTimer timer = metrics.time("resolve")) {
+            resolved.putAll(resolveMetabolites(lookupKeys, context));
+        }
+        context.setResolvedMetabolites(resolved);
+
+        ConversionManifest manifest = new ConversionManifest(headers);
+        File tmpFile = new File(outputFileName + ".tmp");
+        int rowsCopied = 0;
+        try (ConversionMetrics.StageTimer timer = metrics.time("maf");
+             TsvMafSink mafSink = new TsvMafSink(tmpFile, outputFileName.toLowerCase().endsWith(".gz"))) {
+            mafSink.writeHeader(headers);
+
+            for (int compound = 0; compound < table.getCompoundCount(); compound++) {
+                long rowHash = ConversionManifest.getRowHash(table, compound);
+                ConversionManifest.Entry entry = previous != null ? previous.get(keys[compound]) : null;
+                LookupKey lookupKey = table.getLookupKey(compound);
+                Metabolite met = lookupKey != null ? resolved.get(lookupKey) : null;
+                boolean sameMetabolite = entry != null && (met == null) == (entry.toMetabolite() == null);
+
+                if (previousLines != null && sameMetabolite && entry.getRowHash() == rowHash) {
+                    mafSink.copyLine(previousLines.get(entry.getRow() + 1));
+                    context.incrementMafRowCount();
+                    rowsCopied++;
+                } else {
+                    mafSink.writeRow(getMafRow(table, compound, context));
+                    context.incrementMafRowCount();
+                }
 
-        short lastCell = headerRow.getLastCellNum();
-        lastCell--;   //Starts at 1!
-        setLastCellNumber(lastCell);
-
-        metabolonSheet.forEach(row -> {
-            Row currentRow = row;
-            if (currentRow.getCell(0).getRichStringCellValue().toString().equals(sampleNameAnnotation)) {
-                currentRow.forEach(cell -> {
-                    String cellValue = getNumericOrDoubleCellValue(cell);
-                    if (cellValue.length() > 1 && !cellValue.equals(sampleNameAnnotation))
-                        sampleColumns.add(cellValue);
-                });
+                manifest.add(keys[compound], rowHash, met);
             }
-        });
-
-        //Add sample rows at the end of the header row
-        for (int i = 0; i < sampleColumns.size(); i++) {
-            String sampleName = sampleColumns.get(i);
-            headerRow.createCell(lastCell+i).setCellValue(sampleName);
         }
 
-        return newSheet;
+        Files.move(tmpFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        manifest.save(manifestFile);
+        metrics.increment(ConversionMetrics.MAF_ROWS_COPIED, rowsCopied);
+        Log.info("Copied "+rowsCopied+" unchanged rows and wrote "+(context.getMafRowCount() - rowsCopied)
+                +" new or changed rows, "+lookupKeys.size()+" compounds resolved");
 
+        completeConversion(context);
+        publishMetrics(context);
     }
 
-    private String getNumericOrDoubleCellValue(Cell cell){
-        String cellValue = "";
+    /**
+     * Read the first sheet of a Metabolon workbook into a table, splitting the compounds on the way. An .xlsx file
+     * is read in one pass over the sheet XML, without loading the workbook. A text export (.csv, .tsv, .txt) is
+     * read without POI, see {@link MetabolonTextReader}
+     * @param fileName, the Metabolon .xls, .xlsx, .csv, .tsv or .txt file
+     * @param metrics, counts the rows read and split
+     * @return MetabolonTable, with one compound per MAF row
+     */
+    MetabolonTable readMetabolonTable(String fileName, ConversionMetrics metrics) throws IOException, InvalidFormatException {
+        if (MetabolonTextReader.isTextFile(fileName)) {
+            MetabolonTable.Builder tableBuilder = new MetabolonTable.Builder(this::splitCompoundName, this::getRowAnnotation, columnMapping);
+            try (ConversionMetrics.StageTimer timer = metrics.time("read")) {
+                MetabolonTextReader.forFile(fileName).read(fileName, tableBuilder);
+            }
+            return buildTable(tableBuilder, metrics);
+        }
 
-        //Sample names can be text and/or numbers
-        if (cell.getCellTypeEnum() == STRING){
-            if (cell.getRichStringCellValue().getString() != null)
-                cellValue = cell.getRichStringCellValue().getString();
-        } else if(cell.getCellTypeEnum() == NUMERIC) {
-            Double numCellValue = cell.getNumericCellValue();
-            if (numCellValue != null)
-                cellValue = numCellValue.toString();
+        if (!fileName.toLowerCase().endsWith(".xlsx")) {
+            try (ConversionMetrics.StageTimer timer = metrics.time("read");
+                 Workbook workbook = WorkbookFactory.create(new File(fileName))) {
+                return readMetabolonSheet(workbook.getSheetAt(0), metrics);
+            }
+        }
 
+        MetabolonTable.Builder tableBuilder = new MetabolonTable.Builder(this::splitCompoundName, this::getRowAnnotation, columnMapping);
+        try (ConversionMetrics.StageTimer timer = metrics.time("read")) {
+            new MetabolonSheetReader().read(fileName, tableBuilder);
         }
+        return buildTable(tableBuilder, metrics);
+    }
 
-        if (cellValue.equals("."))
-            return "";
+    /**
+     * Read the Metabolon sheet into a table, as it would be read from the annotated sheet: the row types come from
+     * the row numbers and the compounds are split on the way, without copying or changing any rows
+     * @param metabolonSheet, the original Metabolon sheet
+     * @param metrics, counts the rows read and split
+     * @return MetabolonTable, with one compound per MAF row
+     */
+    MetabolonTable readMetabolonSheet(Sheet metabolonSheet, ConversionMetrics metrics) {
+        MetabolonTable.Builder tableBuilder = new MetabolonTable.Builder(this::splitCompoundName, this::getRowAnnotation, columnMapping);
+        for (Row row : metabolonSheet) {
+            if (row.getPhysicalNumberOfCells() == 0)
+                continue;
+            tableBuilder.startRow(row.getRowNum());
+            MetabolonSheetReader.readCells(row, tableBuilder);
+            tableBuilder.endRow();
+        }
+        return buildTable(tableBuilder, metrics);
+    }
 
-        return cellValue;
+    private MetabolonTable buildTable(MetabolonTable.Builder tableBuilder, ConversionMetrics metrics) {
+        metrics.increment(ConversionMetrics.ROWS, tableBuilder.getRowCount());
+        metrics.increment(ConversionMetrics.ROWS_SPLIT, tableBuilder.getSplitRowCount());
+        return tableBuilder.build();
     }
 
     /**
-     * Create a new new empty row in the sheet
-     * @param newSheet
-     * @return Row, with empty values
+     * Log the summary of a finished conversion and hand its metrics to the sinks
      */
-    private Row getNewRow(Sheet newSheet){
-        int numberOfCells = (int) newSheet.getRow(0).getLastCellNum();  // Get the header row
-        int newRowNum = newSheet.getLastRowNum();;
-        Row newRow = newSheet.createRow(newRowNum+1); //Don't overwrite the last or header row.
-        for (int i = 0; i < numberOfCells; i++) {
-            newRow.createCell(i).setCellValue("");   //Add all the empty cells first
+    private void publishMetrics(ConversionContext context) {
+        ConversionMetrics metrics = context.getMetrics();
+        metrics.increment(ConversionMetrics.COMPOUNDS, context.getMafRowCount());
+        metrics.finish();
+        Log.info(metrics.getSummary());
+
+        for (MetricsSink metricsSink : metricsSinks) {
+            try {
+                metricsSink.publish(metrics);
+            } catch (RuntimeException e) {
+                Log.warn("Could not publish the metrics of "+context.getInputFile()+": "+e);
+            }
         }
+    }
 
-        return newRow;
+    /**
+     * @return the sink, writing the columnar export next to the output file as well if it is on
+     */
+    private MafSink withColumnarExport(MafSink mafSink, ConversionContext context) {
+        if (!writeColumnarExport)
+            return mafSink;
+        File columnarFile = ColumnarMafSink.getColumnarFile(new File(context.getOutputFile()));
+        return new TeeMafSink(mafSink, new ColumnarMafSink(columnarFile, context));
     }
 
-    private void addMetabolonData(Sheet newSheet, Sheet metabolonSheet){
+    /**
+     * The output files are written and closed: delete the journal, there is nothing left to resume
+     */
+    private void completeConversion(ConversionContext context) {
+        if (context.getJournalFile() == null)
+            return;
+        try {
+            ConversionJournal.delete(context.getJournalFile());
+        } catch (IOException e) {
+            Log.warn("Could not delete the journal "+context.getJournalFile()+": "+e.getMessage());
+        }
+    }
 
-        //Output the header row first
-        //newSheet.getRow(0).forEach(newCell -> {
-        //    printCellValue(newCell);
-        //});
-        //System.out.println(); //Only to ensure line breaks when printing to screen
+    /**
+     * Create the annotated sheet in a single pass over the Metabolon sheet. Every row is written once to its final
+     * position, with the row type in the first cell. A DATA row reporting several compounds is written as one
+     * consecutive row per compound, so no rows are shifted afterwards. The cells share the
+     * styles of the Metabolon sheet, no styles are added to the workbook.
+     * Only needed to look at the annotation, the MAF is created from {@link #readMetabolonSheet(Sheet, ConversionMetrics)}
+     * @param workbook
+     * @param metabolonSheet, the original Metabolon sheet
+     * @return Sheet, the annotated sheet, placed after the Metabolon sheet
+     */
+    Sheet createAnnotatedSheet(Workbook workbook, Sheet metabolonSheet){
+        Sheet annotatedSheet = workbook.createSheet(annotatedSheetName);
+        workbook.setSheetOrder(annotatedSheetName, workbook.getSheetIndex(metabolonSheet) + 1);
+
+        int nameColumn = getColumnPlan(metabolonSheet).getNameColumn();
+        int additionalRows = 0;
+        int lastColumn = 0;
+        for (Row row : metabolonSheet) {
+            if (row.getPhysicalNumberOfCells() == 0)
+                continue; //Nothing to annotate
 
-        metabolonSheet.forEach(row -> { //Loop through the Metabolon sheet
             int rowNum = row.getRowNum();
-            System.out.println("Adding Metabolon data for row: "+rowNum);
+            lastColumn = Math.max(lastColumn, row.getLastCellNum());
+
+            String[] metabolites = dataAnnotation.equals(getRowAnnotation(rowNum)) ? splitCompoundName(getCompoundName(row, nameColumn)) : null;
+            if (metabolites != null) {
+                if (Log.isDebugEnabled())
+                    Log.debug("Splitting row "+rowNum+" into "+metabolites.length+" rows");
+                for (int i = 0; i < metabolites.length; i++) {
+                    if (i > 0)
+                        additionalRows++;
+                    copyAnnotatedRow(row, annotatedSheet.createRow(rowNum + additionalRows), nameColumn, metabolites[i], true);
+                }
+            } else {
+                copyAnnotatedRow(row, annotatedSheet.createRow(rowNum + additionalRows), nameColumn, null, false);
+            }
+        }
 
-            String dataRowType = row.getCell(0).getRichStringCellValue().toString();
+        for (int i = 0; i < lastColumn; i++)
+            annotatedSheet.setColumnWidth(i, metabolonSheet.getColumnWidth(i));
 
-            //Retrieving cells
-            if (dataRowType.equals(dataAnnotation)){
+        return annotatedSheet;
+    }
 
-                Row newRow = getNewRow(newSheet);
+    /**
+     * Copy a row from the Metabolon sheet and annotate it with the row type. Every cell is written once, the row
+     * type and the split compound name are not copied and then overwritten
+     * @param sourceRow, the row in the Metabolon sheet
+     * @param newRow, the empty row in the annotated sheet
+     * @param nameColumn, the compound name column
+     * @param metabolite, the compound name to use instead of the source name, null to keep it
+     * @param fillBlanks, create blank cells for the missing cells, as they are when a row is duplicated
+     */
+    private void copyAnnotatedRow(Row sourceRow, Row newRow, int nameColumn, String metabolite, boolean fillBlanks) {
+        newRow.createCell(0).setCellValue(getRowAnnotation(sourceRow.getRowNum()));  //Our annotation instead of the first cell
+
+        for (int i = 1; i < sourceRow.getLastCellNum(); i++) {
+            Cell oldCell = sourceRow.getCell(i);
+            if (oldCell == null) {
+                if (i == nameColumn && metabolite != null)
+                    newRow.createCell(i).setCellValue(metabolite);
+                else if (fillBlanks)
+                    newRow.createCell(i);
+                continue;
+            }
 
-                //Lamda requirement
-                final String[] dbId = { null };
-                final String[] metName = { null };
+            Cell newCell = newRow.createCell(i); //New empty cell to put the data into
+            newCell.setCellStyle(oldCell.getCellStyle()); //Same workbook, so the style can be shared
 
-                row.forEach(cell -> {
-                    int metabolonColumnNumber = cell.getColumnIndex();
+            if (i == nameColumn && metabolite != null) {
+                newCell.setCellValue(metabolite);
+                continue;
+            }
 
-                    if (metabolonColumnNumber == metaboliteCellPos) { //Compound name
-                        metName[0] = cell.getRichStringCellValue().getString();
-                        newRow.createCell(4).setCellValue(metName[0]); // "metabolite_identification"
-                    }
+            // Set the cell data value
+            switch (oldCell.getCellTypeEnum()) {
+                case BLANK: break;
+                case BOOLEAN: newCell.setCellValue(oldCell.getBooleanCellValue()); break;
+                case ERROR: newCell.setCellErrorValue(oldCell.getErrorCellValue()); break;
+                case NUMERIC: newCell.setCellValue(oldCell.getNumericCellValue()); break;
+                case STRING: newCell.setCellValue(oldCell.getRichStringCellValue().getString()); break;
+                case FORMULA: newCell.setCellFormula(oldCell.getCellFormula()); break;
+                default: break;
+            }
+        }
+    }
 
-                    if (metabolonColumnNumber == 11 || metabolonColumnNumber == 12) { // KEGG (11) or HMDB (12)
-                        if (cell.getRichStringCellValue().getString() != null && cell.getRichStringCellValue().getString().length() > 2)
-                            dbId[0] = cell.getRichStringCellValue().getString(); // to be used for "database_identifier"
-                        // Adding KEGG first, in case HMDB is not reported
-                    }
+    /**
+     * @return the compound names reported in a compound name, see {@link CompoundNameParser#split(String)}
+     */
+    String[] extractMetabolites(String metabolite){
+        String[] metabolites = CompoundNameParser.split(metabolite);
+        return metabolites != null ? metabolites : new String[] { metabolite };
+    }
 
-                    if (dbId[0] != null && dbId[0].length() > 2)
-                        newRow.createCell(0).setCellValue(dbId[0]); // "database_identifier"
+    ArrayList<Integer> rowsToDuplicate(Sheet metabolonSheet){
+        ArrayList<Integer> dupRows = new ArrayList<>();
+        int nameColumn = getColumnPlan(metabolonSheet).getNameColumn();
+
+        for (Row row : metabolonSheet) {
+            String textValue = getCompoundName(row, nameColumn);
+            if (textValue == null || !dataAnnotation.equals(getRowAnnotation(row.getRowNum())))
+                continue;
+
+            if (needsSplitting(textValue)) {
+                dupRows.add(row.getRowNum());
+                if (Log.isDebugEnabled())
+                    Log.debug(" - Compound at row "+ row.getRowNum() +" needs splitting: "+ textValue);
+            } else if (textValue.contains("/") && Log.isDebugEnabled()) {
+                Log.debug(" - Compound at row "+ row.getRowNum() +" should not be split: "+ textValue);
+            }
+        }
 
+        return dupRows;
+    }
 
-                    if (metabolonColumnNumber == 8) { //Mass
-                        Double cellValue = cell.getNumericCellValue();
-                        if (cellValue != null)
-                            newRow.createCell(5).setCellValue(cell.getNumericCellValue()); // "mass_to_charge"
-                    }
+    /**
+     * Find the Metabolon columns from the rows before the DATA rows, see {@link MetabolonColumnMapping}
+     * @param metabolonSheet, the original Metabolon sheet
+     * @return the columns of the DATA rows
+     */
+    MetabolonColumnMapping.ColumnPlan getColumnPlan(Sheet metabolonSheet) {
+        MetabolonTable.Builder tableBuilder = new MetabolonTable.Builder(metabolite -> null, this::getRowAnnotation, columnMapping);
+        for (Row row : metabolonSheet) {
+            if (dataAnnotation.equals(getRowAnnotation(row.getRowNum())))
+                break;
+            tableBuilder.startRow(row.getRowNum());
+            MetabolonSheetReader.readCells(row, tableBuilder);
+            tableBuilder.endRow();
+        }
+        return tableBuilder.getColumnPlan();
+    }
 
-                    if (metabolonColumnNumber >= 13) {  //The sample concentration values starts at column 13
-                        String cellValue = getNumericOrDoubleCellValue(cell);
-                        Double doubleCellValue = 0.00;
-                        if (cellValue != null) {
-                            if (cellValue != "")
-                                doubleCellValue = Double.parseDouble(cellValue);
+    /**
+     * @param nameColumn, the compound name column, -1 if there is none
+     * @return the compound name of a Metabolon row, null if the row has no text in the compound column
+     */
+    private static String getCompoundName(Row row, int nameColumn) {
+        if (nameColumn < 0)
+            return null;
+        Cell cell = row.getCell(nameColumn);
+        if (cell == null || cell.getCellTypeEnum() != CellType.STRING)
+            return null;
+        return cell.getRichStringCellValue().getString();
+    }
 
-                            newRow.createCell((getLastCellNumber() + metabolonColumnNumber) - 13).setCellValue(doubleCellValue); // Sample data
-                            //TODO, fix the -13 hack!
-                        }
-                    }
+    /**
+     * Check if the compound name reports more than one compound, separated by "/" outside of brackets
+     * @param textValue, the compound name
+     * @return true if the row should be split
+     */
+    boolean needsSplitting(String textValue){
+        return CompoundNameParser.needsSplitting(textValue);
+    }
 
-                });
+    /**
+     * Split a compound name, the same way for the annotated sheet and the MAF
+     * @param metabolite, the compound name
+     * @return null if the row is not split, else one name per row
+     */
+    private String[] splitCompoundName(String metabolite){
+        return CompoundNameParser.split(metabolite);
+    }
 
-                if (metName[0] != null) {
+    /**
+     * Read the annotated sheet into a table, the compounds are already split
+     * @param annotatedSheet, with the row type in the first cell
+     * @return MetabolonTable, with one compound per DATA row
+     */
+    MetabolonTable readAnnotatedSheet(Sheet annotatedSheet){
+        MetabolonTable.Builder tableBuilder = new MetabolonTable.Builder(metabolite -> null, this::getRowAnnotation, columnMapping);
 
-                    Metabolite met;
-                    String cleanMetName = metName[0].replaceAll("\\*",""); //Get rid of "*" (astrix) in compound names before searching
-                    met = searchUtils.getMetaboliteInformation(dbId[0], cleanMetName);
+        annotatedSheet.forEach(row -> {
+            tableBuilder.startRow(row.getCell(0).getRichStringCellValue().toString());
+            MetabolonSheetReader.readCells(row, tableBuilder);
+            tableBuilder.endRow();
+        });
 
-                    if (met.getIdentifier() == null)
-                        met = searchUtils.getMetaboliteInformation(null, cleanMetName); //The compounds may be synonyms, so try ChEBI until we (may) find one
+        return tableBuilder.build();
+    }
 
-                    if (met != null) { // Add and/or replace with MetaboLights WS search results
+    /**
+     * The MAF header row: the header values from the config file, without "Row No.", then the sample names
+     * @param sampleNames, from the SAMPLE_NAME row
+     * @param context, gets the MAF columns of the compound values and the first sample, and the number of MAF columns
+     * @return the MAF headers
+     */
+    List<String> getMafHeaders(List<String> sampleNames, ConversionContext context){
+        return getMafHeaders(getMafConfiguration(), sampleNames, context);
+    }
+
+    /**
+     * The MAF header row of another assay configuration
+     * @param mafConfiguration, e.g. for NMR
+     * @param sampleNames, from the SAMPLE_NAME row
+     * @param context, gets the MAF columns of the compound values and the first sample, and the number of MAF columns
+     * @return the MAF headers
+     */
+    List<String> getMafHeaders(MafConfiguration mafConfiguration, List<String> sampleNames, ConversionContext context){
+        List<String> headers = new ArrayList<>(mafConfiguration.getHeaders());
+        context.setMafColumns(columnMapping.compileMafColumns(mafConfiguration));
 
-                        if (met.getIdentifier() != null)
-                            newRow.createCell(0).setCellValue(met.getIdentifier());
+        int lastCell = headers.size();
+        lastCell--;   //Starts at 1!
+        context.setFirstSampleColumn(lastCell);
 
-                        if (met.getFormula() != null)
-                            newRow.createCell(1).setCellValue(met.getFormula());
+        //Add sample rows at the end of the header row
+        for (int i = 0; i < sampleNames.size(); i++) {
+            if (lastCell + i < headers.size())
+                headers.set(lastCell + i, sampleNames.get(i));
+            else
+                headers.add(sampleNames.get(i));
+        }
 
-                        if (met.getSmiles() != null)
-                            newRow.createCell(2).setCellValue(met.getSmiles());
+        context.setMafColumnCount(headers.size());
+        return headers;
+    }
 
-                        if (met.getInchi() != null)
-                            newRow.createCell(3).setCellValue(met.getInchi());
+    void addMetabolonData(MafSink mafSink, MetabolonTable table, ConversionContext context) throws IOException {
 
-                    }
-                }
+        //Resolve all the compounds first, the lookups are the slow part
+        resolveCompounds(table, context);
 
-                //Printing new value in cell
-                //if (newRow != null)
-                //    newRow.forEach(newCell -> {
-                //        printCellValue(newCell);
-                //    });
-                //System.out.println();
+        try (ConversionMetrics.StageTimer timer = context.getMetrics().time("maf")) {
+            writeMafRows(mafSink, table, context);
+        }
 
-            }
-        });
+    }
 
+    /**
+     * Resolve all the compounds of the table into the context
+     */
+    private void resolveCompounds(MetabolonTable table, ConversionContext context) {
+        Set<LookupKey> lookupKeys = new LinkedHashSet<>();
+        for (int compound = 0; compound < table.getCompoundCount(); compound++) {
+            LookupKey lookupKey = table.getLookupKey(compound);
+            if (lookupKey != null)
+                lookupKeys.add(lookupKey);
+        }
+        try (ConversionMetrics.StageTimer timer = context.getMetrics().time("resolve")) {
+            context.setResolvedMetabolites(resolveMetabolites(lookupKeys, context));
+        }
     }
 
+    /**
+     * Write the MAF rows of the resolved compounds. The rows are built in parallel and written in order
+     * @param mafSink, has the header row already
+     * @param table, the Metabolon data
+     * @param context, the conversion, with the resolved compounds
+     */
+    void writeMafRows(MafSink mafSink, MetabolonTable table, ConversionContext context) throws IOException {
+        mafRowMaterializer.write(mafSink, table.getCompoundCount(), compound -> {
+            if (Log.isDebugEnabled())
+                Log.debug("Adding Metabolon data for compound: "+compound);
+            return getMafRow(table, compound, context);
+        });
+        context.addMafRowCount(table.getCompoundCount());
+    }
 
     /**
-     * Adds a cell in the first row of the spreadsheet to indicate what type of data the row consists of
-     * @param row
-     * @param rowNum
+     * Resolve the compounds. The web service and cache counters are shared by all conversions, so the numbers in
+     * the metrics are only exact when one file is converted at a time
      */
-    private void annotateMetabolonData(Row row, int rowNum){
+    private Map<LookupKey, Metabolite> resolveMetabolites(Collection<LookupKey> lookupKeys, ConversionContext context){
+        if (!checkpointing)
+            return resolveMetabolites(lookupKeys, metaboliteLookup, context.getMetrics());
 
-        AtomicReference<String> cellValue = new AtomicReference<>(dataAnnotation);
+        File journalFile = context.getJournalFile() != null ? context.getJournalFile() :
+                ConversionJournal.getJournalFile(new File(context.getOutputFile()));
+        ConversionJournal journal;
+        try {
+            journal = new ConversionJournal(metaboliteLookup, journalFile, new File(context.getInputFile()), resume);
+        } catch (IOException e) {
+            Log.warn("Could not open the journal "+journalFile+", converting without checkpoints: "+e.getMessage());
+            return resolveMetabolites(lookupKeys, metaboliteLookup, context.getMetrics());
+        }
+        context.setJournalFile(journalFile);
 
-        //Adding new value to cell
-        row.forEach(cell -> {
-            switch (rowNum) {
-                case 0:  cellValue.set(clientIdAnnotation); break;
-                case 1:  cellValue.set(parentSampleIdAnnotation); break;
-                case 2:  cellValue.set(sampleNameAnnotation); break;
-                case 3:  cellValue.set(startingVolumeAnnotation); break;
-                case 4:  cellValue.set(headersAnnotation); break;
-                default: cellValue.set(dataAnnotation);
+        try {
+            Map<LookupKey, Metabolite> resolved = resolveMetabolites(lookupKeys, journal, context.getMetrics());
+            context.getMetrics().increment(ConversionMetrics.JOURNAL_HITS, journal.getReplayedHits());
+            return resolved;
+        } finally {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                Log.warn("Could not close the journal "+journalFile+": "+e.getMessage());
             }
-            row.createCell(0).setCellValue(cellValue.get());  //Change the first cell to our annotation
-        });
+        }
     }
 
-    private static void printCellValue(Cell cell) {
-        switch (cell.getCellTypeEnum()) {
-            case BOOLEAN: System.out.print(cell.getBooleanCellValue()); break;
-            case STRING: System.out.print(cell.getRichStringCellValue().getString()); break;
-            case NUMERIC:
-                if (DateUtil.isCellDateFormatted(cell)) {
-                    System.out.print(cell.getDateCellValue());
-                } else {
-                    System.out.print(cell.getNumericCellValue());
-                }
-                break;
-            case FORMULA: System.out.print(cell.getCellFormula()); break;
-            case BLANK: System.out.print(""); break;
-            default: System.out.print("");
+    private Map<LookupKey, Metabolite> resolveMetabolites(Collection<LookupKey> lookupKeys, MetaboliteLookup lookup, ConversionMetrics metrics){
+        long requestsMade = searchUtils.getRequestsMade();
+        long requestsAvoided = searchUtils.getRequestsAvoided();
+        MetaboliteCache cache = metaboliteLookup instanceof MetaboliteCache ? (MetaboliteCache) metaboliteLookup : null;
+        long cacheHits = cache != null ? cache.getHits() : 0;
+        long cacheMisses = cache != null ? cache.getMisses() : 0;
+
+        MetaboliteResolutionStage resolutionStage = new MetaboliteResolutionStage(lookup, maxConcurrentLookups, lookupsPerSecond, lookupBatchSize);
+        Map<LookupKey, Metabolite> resolved = resolutionStage.resolveAll(lookupKeys, metrics);
+        Log.info("Web service requests made: "+searchUtils.getRequestsMade()+", avoided: "+searchUtils.getRequestsAvoided());
+
+        metrics.increment(ConversionMetrics.WEB_SERVICE_REQUESTS, searchUtils.getRequestsMade() - requestsMade);
+        metrics.increment(ConversionMetrics.WEB_SERVICE_REQUESTS_AVOIDED, searchUtils.getRequestsAvoided() - requestsAvoided);
+        if (cache != null) {
+            metrics.increment(ConversionMetrics.CACHE_HITS, cache.getHits() - cacheHits);
+            metrics.increment(ConversionMetrics.CACHE_MISSES, cache.getMisses() - cacheMisses);
         }
 
-        System.out.print("\t");
+        return resolved;
     }
 
-    private TableReferenceObject getConfiguration(){
-        TableReferenceObject tableReferenceObject = null;
+    /**
+     * The MAF row for a compound
+     * @param table, the Metabolon data
+     * @param compound, the compound (row) in the table
+     * @param context, the conversion, with the MAF header information and the resolved compounds. Only read, rows
+     * are built by several threads at the same time
+     * @return the MAF values, "" for the columns without a value
+     */
+    private Object[] getMafRow(MetabolonTable table, int compound, ConversionContext context){
 
-        //Load the current settings file
-        try {
-            InputStream inputStream = new FileInputStream(configurationFile);
-            IsatabConfigFileDocument configurationFile = IsatabConfigFileDocument.Factory.parse(inputStream);
-            ConfigXMLParser parser = new ConfigXMLParser("");
+        Object[] newRow = new Object[Math.max(context.getMafColumnCount(), context.getFirstSampleColumn() + table.getSampleCount())];
+        Arrays.fill(newRow, 0, context.getMafColumnCount(), "");   //Add all the empty cells first
+        int[] mafColumns = context.getMafColumns();
 
-            //Add columns defined in the configuration file
-            for (IsaTabConfigurationType doc : configurationFile.getIsatabConfigFile().getIsatabConfigurationArray()) {
-                parser.processTable(doc);
-            }
+        if (table.getName(compound) != null) //Compound name
+            setMafValue(newRow, mafColumns, MetabolonColumnMapping.MafField.METABOLITE_IDENTIFICATION, table.getName(compound));
 
-            if (parser.getTables().size() > 0)
-                return parser.getTables().get(0);
+        String dbId = table.getDatabaseIdentifier(compound);
+        if (dbId != null)
+            setMafValue(newRow, mafColumns, MetabolonColumnMapping.MafField.DATABASE_IDENTIFIER, dbId);
+
+        if (!Double.isNaN(table.getMass(compound))) //Mass
+            setMafValue(newRow, mafColumns, MetabolonColumnMapping.MafField.MASS_TO_CHARGE, table.getMass(compound));
+
+        for (int sample = 0; sample < table.getSampleCount(); sample++) {
+            double intensity = table.getIntensity(compound, sample);
+            if (Double.isNaN(intensity))
+                continue; //No cell in the Metabolon sheet
+
+            newRow[context.getFirstSampleColumn() + sample] = intensity; // Sample data
+        }
+
+        LookupKey lookupKey = table.getLookupKey(compound);
+        Metabolite met = lookupKey != null ? context.getResolvedMetabolites().get(lookupKey) : null;
+
+        if (met != null) { // Add and/or replace with MetaboLights WS search results
+
+            if (met.getIdentifier() != null)
+                setMafValue(newRow, mafColumns, MetabolonColumnMapping.MafField.DATABASE_IDENTIFIER, met.getIdentifier());
+
+            if (met.getFormula() != null)
+                setMafValue(newRow, mafColumns, MetabolonColumnMapping.MafField.CHEMICAL_FORMULA, met.getFormula());
+
+            if (met.getSmiles() != null)
+                setMafValue(newRow, mafColumns, MetabolonColumnMapping.MafField.SMILES, met.getSmiles());
+
+            if (met.getInchi() != null)
+                setMafValue(newRow, mafColumns, MetabolonColumnMapping.MafField.INCHI, met.getInchi());
 
-        } catch (XmlException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
 
-        return tableReferenceObject;
+        return newRow;
+    }
+
+    /**
+     * @param mafColumns, the MAF column of each field, see {@link MetabolonColumnMapping#compileMafColumns(MafConfiguration)}
+     */
+    private static void setMafValue(Object[] mafRow, int[] mafColumns, MetabolonColumnMapping.MafField field, Object value) {
+        int column = mafColumns[field.ordinal()];
+        if (column >= 0) //Not in this configuration
+            mafRow[column] = value;
+    }
+
+    /**
+     * The row type of a row in the original Metabolon sheet
+     * @param rowNum
+     * @return the annotation for the row
+     */
+    private String getRowAnnotation(int rowNum){
+        switch (rowNum) {
+            case 0:  return clientIdAnnotation;
+            case 1:  return parentSampleIdAnnotation;
+            case 2:  return sampleNameAnnotation;
+            case 3:  return startingVolumeAnnotation;
+            case 4:  return headersAnnotation;
+            default: return dataAnnotation;
+        }
     }
 
 }
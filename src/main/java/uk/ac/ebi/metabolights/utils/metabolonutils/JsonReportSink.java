@@ -0,0 +1,34 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Writes a JSON run report for every conversion, named after the output file: MyStudy_MAF.xlsx.report.json
+ */
+public class JsonReportSink implements MetricsSink {
+
+    private final File reportDirectory;
+
+    /**
+     * @param reportDirectory, where the reports are written, null to write them next to the output files
+     */
+    public JsonReportSink(File reportDirectory) {
+        this.reportDirectory = reportDirectory;
+    }
+
+    @Override
+    public void publish(ConversionMetrics metrics) {
+        File outputFile = new File(metrics.getOutputFile());
+        File reportFile = new File(reportDirectory != null ? reportDirectory : outputFile.getAbsoluteFile().getParentFile(),
+                outputFile.getName() + ".report.json");
+
+        try {
+            Files.write(reportFile.toPath(), metrics.toJson().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.warn("Could not write the run report "+reportFile+": "+e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe latency histogram with power of two buckets in microseconds: bucket n counts the latencies
+ * from 2^(n-1) up to 2^n microseconds. Percentiles are the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMillis() {
+        long recorded = count.get();
+        return recorded > 0 ? totalNanos.get() / 1e6 / recorded : 0;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    /**
+     * @param percentile, between 0 and 100
+     * @return the upper bound of the bucket, in milliseconds. 0 if nothing was recorded
+     */
+    public double getPercentileMillis(double percentile) {
+        long recorded = count.get();
+        if (recorded == 0)
+            return 0;
+
+        long target = (long) Math.ceil(recorded * percentile / 100.0);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= Math.max(1, target))
+                return Math.min((1L << bucket) / 1000.0, getMaxMillis());
+        }
+
+        return getMaxMillis();
+    }
+
+    /**
+     * @return the count and the bucket counts, as JSON
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"count\": ").append(getCount())
+                .append(", \"meanMillis\": ").append(getMeanMillis())
+                .append(", \"p50Millis\": ").append(getPercentileMillis(50))
+                .append(", \"p95Millis\": ").append(getPercentileMillis(95))
+                .append(", \"p99Millis\": ").append(getPercentileMillis(99))
+                .append(", \"maxMillis\": ").append(getMaxMillis())
+                .append(", \"bucketsMicros\": {");
+
+        String separator = "";
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            long bucketCount = counts.get(bucket);
+            if (bucketCount > 0) {
+                json.append(separator).append("\"").append(1L << bucket).append("\": ").append(bucketCount);
+                separator = ", ";
+            }
+        }
+
+        return json.append("}}").toString();
+    }
+}
@@ -0,0 +1,83 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Minimal leveled logging to the console. The level is INFO unless set with -Dmetabolon.log.level=DEBUG (or TRACE,
+ * WARN, ERROR, OFF) or {@link #setLevel(Level)}. Per-row messages are logged at DEBUG, so they are off by default.
+ */
+public class Log {
+
+    public enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static volatile Level level = getConfiguredLevel();
+    private static volatile PrintStream out = System.out;
+
+    private static Level getConfiguredLevel() {
+        String configuredLevel = System.getProperty("metabolon.log.level");
+        if (configuredLevel == null)
+            return Level.INFO;
+
+        try {
+            return Level.valueOf(configuredLevel.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * @param printStream, where the messages go, System.out by default
+     */
+    public static void setOutput(PrintStream printStream) {
+        out = printStream;
+    }
+
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0 && messageLevel != Level.OFF;
+    }
+
+    /**
+     * Check before building a per-row message, so nothing is concatenated when DEBUG is off
+     */
+    public static boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    public static void error(String message, Throwable e) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, message);
+            e.printStackTrace(out);
+        }
+    }
+
+    private static void log(Level messageLevel, String message) {
+        if (!isEnabled(messageLevel))
+            return;
+
+        if (messageLevel == Level.INFO)
+            out.println(message); //Same output as before for the normal messages
+        else
+            out.println(messageLevel + " " + message);
+    }
+}
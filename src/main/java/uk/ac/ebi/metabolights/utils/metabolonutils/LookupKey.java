@@ -0,0 +1,78 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * What we search ChEBI / MetaboLights with for one compound: the external database id (HMDB or KEGG) reported by
+ * Metabolon, if any, and the cleaned compound name.
+ * Keys are compared on the normalised values, so "HMDB0000122 / D-Glucose" and "hmdb0000122 / d-glucose " are the same.
+ */
+public class LookupKey {
+
+    private final String dbId;
+    private final String name;
+    private final String normalisedDbId;
+    private final String normalisedName;
+
+    public LookupKey(String dbId, String name) {
+        this.dbId = dbId;
+        this.name = name;
+        this.normalisedDbId = normaliseDbId(dbId);
+        this.normalisedName = normaliseName(name);
+    }
+
+    public static String normaliseDbId(String dbId) {
+        if (dbId == null || dbId.trim().isEmpty())
+            return null;
+        return dbId.trim().toUpperCase(Locale.ROOT);
+    }
+
+    public static String normaliseName(String name) {
+        if (name == null || name.trim().isEmpty())
+            return null;
+        return name.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the id as reported by Metabolon, used for searching
+     */
+    public String getDbId() {
+        return dbId;
+    }
+
+    /**
+     * @return the name as reported by Metabolon, used for searching
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getNormalisedDbId() {
+        return normalisedDbId;
+    }
+
+    public String getNormalisedName() {
+        return normalisedName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof LookupKey))
+            return false;
+        LookupKey other = (LookupKey) o;
+        return Objects.equals(normalisedDbId, other.normalisedDbId) && Objects.equals(normalisedName, other.normalisedName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(normalisedDbId, normalisedName);
+    }
+
+    @Override
+    public String toString() {
+        return (dbId != null ? dbId : "-") + " / " + name;
+    }
+}
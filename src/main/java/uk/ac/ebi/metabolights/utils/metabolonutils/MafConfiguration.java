@@ -0,0 +1,70 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.isatools.isacreator.spreadsheet.model.TableReferenceObject;
+
+import java.util.*;
+
+/**
+ * A parsed ISA assay configuration (e.g. configuration_ms.xml), with the MAF headers precomputed.
+ * Instances are shared between conversions, see {@link ConfigRegistry}.
+ */
+public class MafConfiguration {
+
+    private final String configurationFile;
+    private final long lastModified;
+    private final TableReferenceObject tableReferenceObject;
+    private final List<String> headers;
+    private final Map<String, Integer> columnIndexes;
+
+    MafConfiguration(String configurationFile, long lastModified, TableReferenceObject tableReferenceObject) {
+        this.configurationFile = configurationFile;
+        this.lastModified = lastModified;
+        this.tableReferenceObject = tableReferenceObject;
+
+        List<String> mafHeaders = new ArrayList<>();
+        Map<String, Integer> mafColumnIndexes = new HashMap<>();
+        Vector<String> standardHeaders = tableReferenceObject.getHeaders(); //Get all the headers from the config file
+        for (int i = 1; i < standardHeaders.size(); i++) { //Skip the first header as this only has the row-number ("Row No.")
+            mafColumnIndexes.putIfAbsent(standardHeaders.get(i), mafHeaders.size());
+            mafHeaders.add(standardHeaders.get(i));
+        }
+
+        this.headers = Collections.unmodifiableList(mafHeaders);
+        this.columnIndexes = Collections.unmodifiableMap(mafColumnIndexes);
+    }
+
+    public String getConfigurationFile() {
+        return configurationFile;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the parsed configuration. Shared by all conversions, so it must not be changed
+     */
+    public TableReferenceObject getTableReferenceObject() {
+        return tableReferenceObject;
+    }
+
+    /**
+     * @return the MAF column headers, in order, without "Row No."
+     */
+    public List<String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @param header, e.g. "database_identifier"
+     * @return the MAF column index of the header, -1 if the configuration does not have it
+     */
+    public int getColumnIndex(String header) {
+        Integer columnIndex = columnIndexes.get(header);
+        return columnIndex != null ? columnIndex : -1;
+    }
+
+    public Map<String, Integer> getColumnIndexes() {
+        return columnIndexes;
+    }
+}
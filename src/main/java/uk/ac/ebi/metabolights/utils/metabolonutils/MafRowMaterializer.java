@@ -0,0 +1,106 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntFunction;
+
+/**
+ * Builds and encodes the MAF rows on a fork-join pool and writes them in order.
+ *
+ * The rows are handled in chunks: the rows of a chunk are built in parallel into a buffer, one slot per row, while
+ * the previous chunk is written by the calling thread. Only the writing is sequential, so the output is the same
+ * as when the rows are built one by one, whatever the number of threads.
+ */
+public class MafRowMaterializer {
+
+    private static final int chunkRows = 2048;  //Rows buffered per chunk, two chunks are in memory at a time
+    private static final int leafRows = 32;     //Rows built by one task
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param parallelism, the number of threads building rows, 1 to build them in the calling thread
+     */
+    public MafRowMaterializer(int parallelism) {
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    public int getParallelism() {
+        return pool != null ? pool.getParallelism() : 1;
+    }
+
+    /**
+     * @param mafSink, where the rows are written
+     * @param rowCount, the number of rows
+     * @param rowFunction, builds a row, see {@link MafSink#writeRow(Object[])}. Must be thread safe
+     */
+    public void write(MafSink mafSink, int rowCount, IntFunction<Object[]> rowFunction) throws IOException {
+        if (pool == null || rowCount <= leafRows) {
+            for (int row = 0; row < rowCount; row++)
+                mafSink.writeRow(rowFunction.apply(row));
+            return;
+        }
+
+        int firstEnd = Math.min(chunkRows, rowCount);
+        EncodeTask pending = new EncodeTask(mafSink, rowFunction, new Object[firstEnd], 0, 0, firstEnd);
+        pool.execute(pending);
+
+        for (int start = 0; start < rowCount; start += chunkRows) {
+            pending.join(); //Rethrows what a row function threw
+            EncodeTask current = pending;
+            int end = Math.min(start + chunkRows, rowCount);
+
+            if (end < rowCount) { //Build the next chunk while this one is written
+                int nextEnd = Math.min(end + chunkRows, rowCount);
+                pending = new EncodeTask(mafSink, rowFunction, new Object[nextEnd - end], end, end, nextEnd);
+                pool.execute(pending);
+            }
+
+            for (int i = 0; i < end - start; i++)
+                mafSink.writeEncodedRow(current.encodedRows[i]);
+        }
+    }
+
+    /**
+     * Stop the threads, the materializer can not be used afterwards
+     */
+    public void shutdown() {
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    /**
+     * Builds and encodes the rows from start to end into their slots of the chunk
+     */
+    private static class EncodeTask extends RecursiveAction {
+        private final MafSink mafSink;
+        private final IntFunction<Object[]> rowFunction;
+        private final Object[] encodedRows;
+        private final int chunkStart;
+        private final int start;
+        private final int end;
+
+        EncodeTask(MafSink mafSink, IntFunction<Object[]> rowFunction, Object[] encodedRows, int chunkStart, int start, int end) {
+            this.mafSink = mafSink;
+            this.rowFunction = rowFunction;
+            this.encodedRows = encodedRows;
+            this.chunkStart = chunkStart;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= leafRows) {
+                for (int row = start; row < end; row++)
+                    encodedRows[row - chunkStart] = mafSink.encodeRow(rowFunction.apply(row));
+                return;
+            }
+
+            int middle = (start + end) >>> 1;
+            invokeAll(new EncodeTask(mafSink, rowFunction, encodedRows, chunkStart, start, middle),
+                    new EncodeTask(mafSink, rowFunction, encodedRows, chunkStart, middle, end));
+        }
+    }
+}
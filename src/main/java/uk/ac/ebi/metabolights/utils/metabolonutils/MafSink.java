@@ -0,0 +1,39 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where the MAF rows of a conversion are written to, one row at a time: the "MAF Data" sheet of a workbook
+ * ({@link XlsxMafSink}) or a MetaboLights MAF file ({@link TsvMafSink}).
+ */
+public interface MafSink extends Closeable {
+
+    /**
+     * @param headers, the MAF columns: the headers from the configuration followed by the sample names
+     */
+    void writeHeader(List<String> headers) throws IOException;
+
+    /**
+     * @param values, one per MAF column: a String, a Double, or null for no cell. Can be longer than the header row
+     */
+    void writeRow(Object[] values) throws IOException;
+
+    /**
+     * Turn a row into what {@link #writeEncodedRow(Object)} writes, e.g. the text of a TSV line. Must be thread safe,
+     * rows are encoded in parallel and written in order, see {@link MafRowMaterializer}
+     * @param values, as for {@link #writeRow(Object[])}
+     */
+    default Object encodeRow(Object[] values) {
+        return values;
+    }
+
+    /**
+     * @param encodedRow, from {@link #encodeRow(Object[])}
+     */
+    default void writeEncodedRow(Object encodedRow) throws IOException {
+        writeRow((Object[]) encodedRow);
+    }
+
+}
@@ -0,0 +1,283 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.isatools.plugins.metabolights.assignments.model.Metabolite;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent cache in front of another MetaboliteLookup (normally SearchUtils).
+ *
+ * Entries are kept in memory in least-recently-used order and bounded by maxEntries. Every new entry is appended to
+ * the cache file, so the next conversion (or the next JVM) can resolve known compounds without any web service call.
+ * Compounds that could not be resolved are cached as well, with a shorter time to live.
+ */
+public class MetaboliteCache implements MetaboliteLookup, Closeable {
+
+    public static final long DEFAULT_TTL = TimeUnit.DAYS.toMillis(30);
+    public static final long DEFAULT_NEGATIVE_TTL = TimeUnit.DAYS.toMillis(1);
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private static final String NULL_VALUE = "\\N";
+
+    private final MetaboliteLookup delegate;
+    private final File cacheFile;
+    private final long ttl;
+    private final long negativeTtl;
+    private final int maxEntries;
+    private final LinkedHashMap<LookupKey, CacheEntry> entries;
+    private Writer cacheWriter;
+
+    private long hits = 0;
+    private long negativeHits = 0;
+    private long misses = 0;
+    private long expired = 0;
+    private long evictions = 0;
+
+    public MetaboliteCache(MetaboliteLookup delegate, File cacheFile) throws IOException {
+        this(delegate, cacheFile, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param delegate, used for the compounds that are not in the cache
+     * @param cacheFile, where the entries are stored. Created if it does not exist
+     * @param ttl, how long a resolved compound is kept, in milliseconds
+     * @param negativeTtl, how long a compound that could not be resolved is kept, in milliseconds
+     * @param maxEntries, the maximum number of entries, the least recently used are evicted first
+     */
+    public MetaboliteCache(MetaboliteLookup delegate, File cacheFile, long ttl, long negativeTtl, int maxEntries) throws IOException {
+        this.delegate = delegate;
+        this.cacheFile = cacheFile;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<LookupKey, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<LookupKey, CacheEntry> eldest) {
+                if (size() > MetaboliteCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        load();
+    }
+
+    @Override
+    public Metabolite resolve(LookupKey key) {
+        CacheEntry entry = get(key);
+        if (entry != null)
+            return entry.toMetabolite();
+
+        Metabolite met = delegate.resolve(key); //Not holding the lock while calling the web services
+        put(key, new CacheEntry(met, System.currentTimeMillis()));
+        return met;
+    }
+
+    /**
+     * Resolve the cached compounds from the cache and the others with one resolveAll call to the delegate
+     */
+    @Override
+    public Map<LookupKey, Metabolite> resolveAll(Collection<LookupKey> keys) {
+        Map<LookupKey, Metabolite> resolved = new LinkedHashMap<>();
+        List<LookupKey> missingKeys = new ArrayList<>();
+
+        for (LookupKey key : new LinkedHashSet<>(keys)) {
+            CacheEntry entry = get(key);
+            if (entry != null)
+                resolved.put(key, entry.toMetabolite());
+            else
+                missingKeys.add(key);
+        }
+
+        if (!missingKeys.isEmpty()) {
+            long now = System.currentTimeMillis();
+            delegate.resolveAll(missingKeys).forEach((key, met) -> {
+                put(key, new CacheEntry(met, now));
+                resolved.put(key, met);
+            });
+        }
+
+        return resolved;
+    }
+
+    private synchronized CacheEntry get(LookupKey key) {
+        CacheEntry entry = entries.get(key);
+
+        if (entry != null && isExpired(entry, System.currentTimeMillis())) {
+            entries.remove(key);
+            expired++;
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        if (entry.isNegative())
+            negativeHits++;
+
+        return entry;
+    }
+
+    private synchronized void put(LookupKey key, CacheEntry entry) {
+        entries.put(key, entry);
+
+        try {
+            if (cacheWriter == null)
+                cacheWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(cacheFile, true), StandardCharsets.UTF_8));
+            cacheWriter.write(toLine(key, entry));
+            cacheWriter.flush();
+        } catch (IOException e) {
+            Log.warn("Could not write to the metabolite cache "+cacheFile+": "+e.getMessage());
+        }
+    }
+
+    private boolean isExpired(CacheEntry entry, long now) {
+        return now - entry.storedAt > (entry.isNegative() ? negativeTtl : ttl);
+    }
+
+    /**
+     * Read the cache file. Later lines replace earlier lines for the same key, expired lines are skipped
+     */
+    private synchronized void load() throws IOException {
+        if (!cacheFile.exists())
+            return;
+
+        long now = System.currentTimeMillis();
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(cacheFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                String[] values = line.split("\t", -1);
+                if (values.length != 7)
+                    continue; //Incomplete line, e.g. the JVM died while writing
+
+                CacheEntry entry = new CacheEntry(Long.parseLong(values[0]), fromValue(values[3]), fromValue(values[4]),
+                        fromValue(values[5]), fromValue(values[6]));
+                if (!isExpired(entry, now))
+                    entries.put(new LookupKey(fromValue(values[1]), fromValue(values[2])), entry);
+            }
+        }
+
+        Log.info("Loaded "+entries.size()+" compounds from the metabolite cache "+cacheFile);
+        if (lines > entries.size() * 2)
+            compact(); //Mostly replaced or expired lines
+    }
+
+    /**
+     * Rewrite the cache file with the current entries only
+     */
+    public synchronized void compact() throws IOException {
+        if (cacheWriter != null) {
+            cacheWriter.close();
+            cacheWriter = null;
+        }
+
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8))) {
+            for (Map.Entry<LookupKey, CacheEntry> entry : entries.entrySet())
+                writer.write(toLine(entry.getKey(), entry.getValue()));
+        }
+        Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        compact();
+        Log.info("Metabolite cache: "+hits+" hits ("+negativeHits+" not resolved), "+misses+" misses, "
+                +expired+" expired, "+evictions+" evicted, "+entries.size()+" entries");
+    }
+
+    private static String toLine(LookupKey key, CacheEntry entry) {
+        List<String> values = new ArrayList<>();
+        values.add(Long.toString(entry.storedAt));
+        values.add(toValue(key.getNormalisedDbId()));
+        values.add(toValue(key.getNormalisedName()));
+        values.add(toValue(entry.identifier));
+        values.add(toValue(entry.formula));
+        values.add(toValue(entry.smiles));
+        values.add(toValue(entry.inchi));
+        return String.join("\t", values) + "\n";
+    }
+
+    private static String toValue(String value) {
+        if (value == null)
+            return NULL_VALUE;
+        return value.replace("\t", " ").replace("\n", " ").replace("\r", " ");
+    }
+
+    private static String fromValue(String value) {
+        return NULL_VALUE.equals(value) ? null : value;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getNegativeHits() {
+        return negativeHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getExpired() {
+        return expired;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * The resolved Metabolite fields we use in the MAF
+     */
+    private static class CacheEntry {
+        private final long storedAt;
+        private final String identifier;
+        private final String formula;
+        private final String smiles;
+        private final String inchi;
+
+        CacheEntry(long storedAt, String identifier, String formula, String smiles, String inchi) {
+            this.storedAt = storedAt;
+            this.identifier = identifier;
+            this.formula = formula;
+            this.smiles = smiles;
+            this.inchi = inchi;
+        }
+
+        CacheEntry(Metabolite met, long storedAt) {
+            this(storedAt, met != null ? met.getIdentifier() : null, met != null ? met.getFormula() : null,
+                    met != null ? met.getSmiles() : null, met != null ? met.getInchi() : null);
+        }
+
+        boolean isNegative() {
+            return identifier == null && formula == null && smiles == null && inchi == null;
+        }
+
+        Metabolite toMetabolite() {
+            Metabolite met = new Metabolite();
+            met.setIdentifier(identifier);
+            met.setFormula(formula);
+            met.setSmiles(smiles);
+            met.setInchi(inchi);
+            return met;
+        }
+    }
+}
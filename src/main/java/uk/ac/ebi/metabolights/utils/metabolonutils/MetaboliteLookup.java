@@ -0,0 +1,34 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.isatools.plugins.metabolights.assignments.model.Metabolite;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resolves a Metabolon compound to a Metabolite (identifier, formula, SMILES and InChI)
+ */
+public interface MetaboliteLookup {
+
+    /**
+     * @param key, the external id and cleaned name of the compound
+     * @return Metabolite, with a null identifier if nothing was found. May be null.
+     */
+    Metabolite resolve(LookupKey key);
+
+    /**
+     * Resolve a batch of compounds. Implementations can group and deduplicate the requests
+     * @param keys, the compounds to resolve
+     * @return Map, the Metabolite for each distinct key
+     */
+    default Map<LookupKey, Metabolite> resolveAll(Collection<LookupKey> keys) {
+        Map<LookupKey, Metabolite> resolved = new LinkedHashMap<>();
+        for (LookupKey key : keys) {
+            if (!resolved.containsKey(key))
+                resolved.put(key, resolve(key));
+        }
+        return resolved;
+    }
+
+}
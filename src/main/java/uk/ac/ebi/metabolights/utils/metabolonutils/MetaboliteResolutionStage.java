@@ -0,0 +1,137 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.isatools.plugins.metabolights.assignments.model.Metabolite;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves all the compounds of a conversion before the MAF rows are written.
+ *
+ * Every distinct LookupKey is resolved once, by a bounded pool of workers. The keys are handed to the lookup in
+ * batches of batchSize through {@link MetaboliteLookup#resolveAll(Collection)}, so it can group its requests.
+ * The number of batches running at the same time is capped by maxInFlight and the rate they are started at by
+ * requestsPerSecond, so we stay polite to the ChEBI and MetaboLights web services.
+ */
+public class MetaboliteResolutionStage {
+
+    private final MetaboliteLookup lookup;
+    private final int maxInFlight;
+    private final double requestsPerSecond;
+    private final int batchSize;
+
+    public MetaboliteResolutionStage(MetaboliteLookup lookup, int maxInFlight, double requestsPerSecond) {
+        this(lookup, maxInFlight, requestsPerSecond, 1);
+    }
+
+    /**
+     * @param lookup, used to resolve each compound. Must be thread safe when maxInFlight is more than 1
+     * @param maxInFlight, the maximum number of concurrent lookups
+     * @param requestsPerSecond, the maximum number of lookups started per second, zero or less for no limit
+     * @param batchSize, the number of compounds in each lookup
+     */
+    public MetaboliteResolutionStage(MetaboliteLookup lookup, int maxInFlight, double requestsPerSecond, int batchSize) {
+        this.lookup = lookup;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.requestsPerSecond = requestsPerSecond;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public Map<LookupKey, Metabolite> resolveAll(Collection<LookupKey> keys) {
+        return resolveAll(keys, null);
+    }
+
+    /**
+     * @param keys, the compounds to resolve, duplicates are only resolved once
+     * @param metrics, where the number of lookups and their latency are recorded, can be null
+     * @return Map, the Metabolite for each key. The Metabolite is null when the lookup failed
+     */
+    public Map<LookupKey, Metabolite> resolveAll(Collection<LookupKey> keys, ConversionMetrics metrics) {
+        List<LookupKey> distinctKeys = new ArrayList<>(new LinkedHashSet<>(keys));
+        Map<LookupKey, Metabolite> resolved = new HashMap<>();
+        RateLimiter rateLimiter = new RateLimiter(requestsPerSecond);
+
+        List<List<LookupKey>> batches = new ArrayList<>();
+        for (int i = 0; i < distinctKeys.size(); i += batchSize)
+            batches.add(distinctKeys.subList(i, Math.min(i + batchSize, distinctKeys.size())));
+
+        Log.info("Resolving "+distinctKeys.size()+" distinct compounds in "+batches.size()+" batches, "+maxInFlight+" at a time");
+        if (metrics != null) {
+            metrics.increment(ConversionMetrics.LOOKUP_KEYS, distinctKeys.size());
+            metrics.increment(ConversionMetrics.LOOKUP_BATCHES, batches.size());
+        }
+
+        if (maxInFlight == 1 || batches.size() <= 1) {
+            for (List<LookupKey> batch : batches)
+                resolved.putAll(resolve(batch, rateLimiter, metrics));
+            return resolved;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxInFlight, batches.size()), new LookupThreadFactory());
+        try {
+            List<Future<Map<LookupKey, Metabolite>>> futures = new ArrayList<>();
+            for (List<LookupKey> batch : batches)
+                futures.add(executor.submit(() -> resolve(batch, rateLimiter, metrics)));
+
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    resolved.putAll(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    Log.warn("Could not resolve "+batches.get(i)+": "+e.getCause());
+                    batches.get(i).forEach(key -> resolved.put(key, null));
+                    if (metrics != null)
+                        metrics.increment(ConversionMetrics.LOOKUP_FAILURES, batches.get(i).size());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while resolving compounds", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return resolved;
+    }
+
+    private Map<LookupKey, Metabolite> resolve(List<LookupKey> batch, RateLimiter rateLimiter, ConversionMetrics metrics) {
+        Map<LookupKey, Metabolite> resolved = new HashMap<>();
+
+        try {
+            rateLimiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            batch.forEach(key -> resolved.put(key, null));
+            return resolved;
+        }
+
+        long start = System.nanoTime(); //After the rate limiter, only the lookup itself
+        try {
+            if (batch.size() == 1)
+                resolved.put(batch.get(0), lookup.resolve(batch.get(0)));
+            else
+                resolved.putAll(lookup.resolveAll(batch));
+        } catch (RuntimeException e) {
+            Log.warn("Could not resolve "+batch+": "+e);
+            batch.forEach(key -> resolved.put(key, null));
+            if (metrics != null)
+                metrics.increment(ConversionMetrics.LOOKUP_FAILURES, batch.size());
+        }
+
+        if (metrics != null)
+            metrics.getLookupLatency().record(System.nanoTime() - start);
+
+        return resolved;
+    }
+
+    private static class LookupThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "metabolite-lookup-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
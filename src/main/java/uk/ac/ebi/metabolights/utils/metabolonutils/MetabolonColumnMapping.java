@@ -0,0 +1,202 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.util.*;
+
+/**
+ * Where the compound values are in a Metabolon sheet and where they go in the MAF, by column name.
+ *
+ * The Metabolon columns are found by their name in the HEADERS row (BIOCHEMICAL, MASS, KEGG, HMDB by default), and
+ * the samples start after the column with the SAMPLE_NAME label. The MAF columns are found by their header in the
+ * ISA configuration (metabolite_identification, mass_to_charge...). Both are compiled once per sheet into plain
+ * column indexes, see {@link ColumnPlan} and {@link #compileMafColumns(MafConfiguration)}.
+ */
+public class MetabolonColumnMapping {
+
+    /**
+     * The Metabolon columns we read
+     */
+    public enum Field { NAME, MASS, KEGG, HMDB }
+
+    /**
+     * The MAF columns we write
+     */
+    public enum MafField { DATABASE_IDENTIFIER, CHEMICAL_FORMULA, SMILES, INCHI, METABOLITE_IDENTIFICATION, MASS_TO_CHARGE }
+
+    //The layout of the Metabolon sheets we have seen, used when the HEADERS row does not tell
+    static final int defaultNameColumn = 1;
+    static final int defaultMassColumn = 8;
+    static final int defaultKeggColumn = 11;
+    static final int defaultHmdbColumn = 12;
+    static final int defaultFirstSampleColumn = 13;
+
+    private final Map<String, Field> headerFields = new HashMap<>();
+    private final Map<MafField, String> mafHeaders = new EnumMap<>(MafField.class);
+
+    /**
+     * @return the Metabolon and MAF column names we know of
+     */
+    public static MetabolonColumnMapping defaultMapping() {
+        return new MetabolonColumnMapping()
+                .mapHeader("BIOCHEMICAL", Field.NAME)
+                .mapHeader("MASS", Field.MASS)
+                .mapHeader("KEGG", Field.KEGG)
+                .mapHeader("HMDB", Field.HMDB)
+                .mapHeader("HMDB_ID", Field.HMDB)
+                .mapMafHeader(MafField.DATABASE_IDENTIFIER, "database_identifier")
+                .mapMafHeader(MafField.CHEMICAL_FORMULA, "chemical_formula")
+                .mapMafHeader(MafField.SMILES, "smiles")
+                .mapMafHeader(MafField.INCHI, "inchi")
+                .mapMafHeader(MafField.METABOLITE_IDENTIFICATION, "metabolite_identification")
+                .mapMafHeader(MafField.MASS_TO_CHARGE, "mass_to_charge");
+    }
+
+    /**
+     * @param header, a column name in the HEADERS row, compared without case
+     * @param field, what the column has
+     */
+    public MetabolonColumnMapping mapHeader(String header, Field field) {
+        headerFields.put(normaliseHeader(header), field);
+        return this;
+    }
+
+    /**
+     * @param field, what we write
+     * @param mafHeader, the header of the column in the ISA configuration
+     */
+    public MetabolonColumnMapping mapMafHeader(MafField field, String mafHeader) {
+        mafHeaders.put(field, mafHeader);
+        return this;
+    }
+
+    private static String normaliseHeader(String header) {
+        return header.trim().toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the Metabolon layout we have seen, for sheets without a HEADERS row
+     */
+    public static ColumnPlan defaultPlan() {
+        return new ColumnPlan(defaultNameColumn, defaultMassColumn, defaultKeggColumn, defaultHmdbColumn, defaultFirstSampleColumn);
+    }
+
+    /**
+     * Find the Metabolon columns by name
+     * @param headerRow, the HEADERS row values by column, null for the columns without text
+     * @param sampleLabelColumn, the column of the SAMPLE_NAME label, the samples start after it. -1 if not known
+     * @return the plan, the default plan if none of the column names are known
+     */
+    public ColumnPlan compile(List<String> headerRow, int sampleLabelColumn) {
+        int firstSampleColumn = sampleLabelColumn >= 0 ? sampleLabelColumn + 1 : defaultFirstSampleColumn;
+
+        int[] columns = new int[Field.values().length];
+        Arrays.fill(columns, -1);
+        boolean found = false;
+        for (int column = 1; column < Math.min(headerRow.size(), firstSampleColumn); column++) { //The first column has the row type
+            String header = headerRow.get(column);
+            Field field = header != null ? headerFields.get(normaliseHeader(header)) : null;
+            if (field != null && columns[field.ordinal()] < 0) {
+                columns[field.ordinal()] = column;
+                found = true;
+            }
+        }
+
+        if (!found) {
+            Log.warn("None of the HEADERS columns are known, using the default Metabolon layout");
+            ColumnPlan defaultPlan = defaultPlan();
+            return sampleLabelColumn >= 0 ? new ColumnPlan(defaultPlan.nameColumn, defaultPlan.massColumn,
+                    defaultPlan.keggColumn, defaultPlan.hmdbColumn, firstSampleColumn) : defaultPlan;
+        }
+
+        for (Field field : Field.values()) {
+            if (columns[field.ordinal()] < 0)
+                Log.warn("No "+field+" column in the HEADERS row, it is left empty in the MAF");
+        }
+
+        return new ColumnPlan(columns[Field.NAME.ordinal()], columns[Field.MASS.ordinal()],
+                columns[Field.KEGG.ordinal()], columns[Field.HMDB.ordinal()], firstSampleColumn);
+    }
+
+    /**
+     * Find the MAF columns in the configuration
+     * @return the MAF column of each MafField, by ordinal, -1 if the configuration does not have it
+     */
+    public int[] compileMafColumns(MafConfiguration mafConfiguration) {
+        int[] columns = new int[MafField.values().length];
+        for (MafField field : MafField.values()) {
+            String mafHeader = mafHeaders.get(field);
+            columns[field.ordinal()] = mafHeader != null ? mafConfiguration.getColumnIndex(mafHeader) : -1;
+        }
+        return columns;
+    }
+
+    /**
+     * The Metabolon columns of one sheet, with what each column has in a lookup table, so reading a cell is a single
+     * array access instead of a chain of column checks
+     */
+    public static class ColumnPlan {
+
+        static final byte NONE = 0;
+        static final byte NAME = 1;
+        static final byte MASS = 2;
+        static final byte KEGG = 3;
+        static final byte HMDB = 4;
+        static final byte SAMPLE = 5;
+
+        private final int nameColumn;
+        private final int massColumn;
+        private final int keggColumn;
+        private final int hmdbColumn;
+        private final int firstSampleColumn;
+        private final byte[] roles;
+
+        ColumnPlan(int nameColumn, int massColumn, int keggColumn, int hmdbColumn, int firstSampleColumn) {
+            this.nameColumn = nameColumn;
+            this.massColumn = massColumn;
+            this.keggColumn = keggColumn;
+            this.hmdbColumn = hmdbColumn;
+            this.firstSampleColumn = firstSampleColumn;
+
+            //Assigned in reverse order, so the name wins if a column is mapped twice
+            roles = new byte[firstSampleColumn];
+            setRole(hmdbColumn, HMDB);
+            setRole(keggColumn, KEGG);
+            setRole(massColumn, MASS);
+            setRole(nameColumn, NAME);
+        }
+
+        private void setRole(int column, byte role) {
+            if (column > 0 && column < roles.length)
+                roles[column] = role;
+        }
+
+        /**
+         * @return what the column has: NONE, NAME, MASS, KEGG, HMDB or SAMPLE
+         */
+        byte getRole(int column) {
+            return column >= firstSampleColumn ? SAMPLE : roles[column];
+        }
+
+        /**
+         * @return the compound name column, -1 if there is none
+         */
+        public int getNameColumn() {
+            return nameColumn;
+        }
+
+        public int getMassColumn() {
+            return massColumn;
+        }
+
+        public int getKeggColumn() {
+            return keggColumn;
+        }
+
+        public int getHmdbColumn() {
+            return hmdbColumn;
+        }
+
+        public int getFirstSampleColumn() {
+            return firstSampleColumn;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+/**
+ * Receives the cells of a Metabolon sheet, row by row and in column order within a row, without any per-cell
+ * objects. Cells that do not exist in the source are not reported.
+ */
+public interface MetabolonRowHandler {
+
+    void startRow(int rowNum);
+
+    void stringCell(int column, String value);
+
+    void numericCell(int column, double value);
+
+    /**
+     * A cell without a value, or with a value we do not use (boolean, error)
+     */
+    void blankCell(int column);
+
+    void endRow();
+
+}
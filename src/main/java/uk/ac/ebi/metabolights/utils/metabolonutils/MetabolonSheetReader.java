@@ -0,0 +1,174 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.SAXHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+/**
+ * Reads the first sheet of a Metabolon .xlsx workbook with the POI event API (XSSFReader + SAX).
+ * Cells are handed over one at a time to a {@link MetabolonRowHandler}, so the workbook is never loaded into memory.
+ */
+public class MetabolonSheetReader {
+
+    /**
+     * Read the first sheet of the workbook
+     * @param fileName, the Metabolon .xlsx file
+     * @param rowHandler, receives the rows that have at least one cell, in sheet order
+     */
+    public void read(String fileName, MetabolonRowHandler rowHandler) throws IOException, InvalidFormatException {
+        OPCPackage pkg = OPCPackage.open(new File(fileName), PackageAccess.READ);
+        try {
+            XSSFReader xssfReader = new XSSFReader(pkg);
+            ReadOnlySharedStringsTable sharedStrings = new ReadOnlySharedStringsTable(pkg);
+
+            Iterator<InputStream> sheets = xssfReader.getSheetsData();
+            if (!sheets.hasNext())
+                throw new InvalidFormatException("No sheets found in " + fileName);
+
+            try (InputStream sheet = sheets.next()) {
+                XMLReader parser = SAXHelper.newXMLReader();
+                parser.setContentHandler(new SheetHandler(sharedStrings, rowHandler));
+                parser.parse(new InputSource(sheet));
+            }
+
+        } catch (InvalidFormatException e) {
+            throw e;
+        } catch (OpenXML4JException | SAXException | ParserConfigurationException e) {
+            throw new IOException("Could not read the Metabolon sheet in " + fileName, e);
+        } finally {
+            pkg.revert(); //Read only, nothing to save
+        }
+    }
+
+    /**
+     * Hand the cells of a POI row to a handler, with the same cell types as the streaming reader.
+     * The caller starts and ends the row
+     * @param row, a row from an in-memory workbook
+     * @param rowHandler
+     */
+    public static void readCells(Row row, MetabolonRowHandler rowHandler) {
+        for (Cell cell : row) {
+            int column = cell.getColumnIndex();
+            CellType cellType = cell.getCellTypeEnum();
+            if (cellType == CellType.FORMULA)
+                cellType = cell.getCachedFormulaResultTypeEnum();
+
+            switch (cellType) {
+                case STRING:  rowHandler.stringCell(column, cell.getRichStringCellValue().getString()); break;
+                case NUMERIC: rowHandler.numericCell(column, cell.getNumericCellValue()); break;
+                default:      rowHandler.blankCell(column); //Blank, boolean and error cells
+            }
+        }
+    }
+
+    /**
+     * Turns the sheet XML into MetabolonRowHandler calls
+     */
+    private static class SheetHandler extends DefaultHandler {
+
+        private final ReadOnlySharedStringsTable sharedStrings;
+        private final MetabolonRowHandler rowHandler;
+
+        private final StringBuilder value = new StringBuilder();
+        private int rowNum = -1;
+        private int columnNum = -1;
+        private String cellType;
+        private boolean inValue = false;
+        private boolean rowStarted = false;
+
+        SheetHandler(ReadOnlySharedStringsTable sharedStrings, MetabolonRowHandler rowHandler) {
+            this.sharedStrings = sharedStrings;
+            this.rowHandler = rowHandler;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            switch (localName) {
+                case "row":
+                    String rowRef = attributes.getValue("r");
+                    rowNum = rowRef != null ? Integer.parseInt(rowRef) - 1 : rowNum + 1; //1-based in the file
+                    columnNum = -1;
+                    rowStarted = false;
+                    break;
+                case "c":
+                    String cellRef = attributes.getValue("r");
+                    columnNum = cellRef != null ? new CellReference(cellRef).getCol() : columnNum + 1;
+                    cellType = attributes.getValue("t");
+                    value.setLength(0);
+                    break;
+                case "v":
+                case "t": //Inline string text
+                    inValue = true;
+                    break;
+                default: break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inValue)
+                value.append(ch, start, length);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            switch (localName) {
+                case "v":
+                case "t":
+                    inValue = false;
+                    break;
+                case "c":
+                    if (!rowStarted) { //Rows without cells are not reported
+                        rowHandler.startRow(rowNum);
+                        rowStarted = true;
+                    }
+                    handleCell();
+                    break;
+                case "row":
+                    if (rowStarted)
+                        rowHandler.endRow();
+                    break;
+                default: break;
+            }
+        }
+
+        private void handleCell() {
+            String text = value.toString();
+
+            if (cellType == null || cellType.equals("n")) {
+                if (text.isEmpty())
+                    rowHandler.blankCell(columnNum); //Only carries a style
+                else
+                    rowHandler.numericCell(columnNum, Double.parseDouble(text));
+                return;
+            }
+
+            switch (cellType) {
+                case "s":         rowHandler.stringCell(columnNum, sharedStrings.getEntryAt(Integer.parseInt(text))); break;
+                case "inlineStr":
+                case "str":       rowHandler.stringCell(columnNum, text); break;
+                default:          rowHandler.blankCell(columnNum); //Boolean and error cells
+            }
+        }
+    }
+
+}
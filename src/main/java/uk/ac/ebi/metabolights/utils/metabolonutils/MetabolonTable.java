@@ -0,0 +1,404 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Typed, columnar copy of a Metabolon sheet: the compound metadata in one array per column and the peak areas in a
+ * dense compound x sample matrix of doubles, with a bitmap of the missing values ("." and blank cells).
+ *
+ * The matrix holds exactly what goes into the MAF: 0 for "." and blank cells, as before, and NaN for cells that do
+ * not exist in the source, which are left empty in the MAF.
+ */
+public class MetabolonTable {
+
+    final static String sampleNameAnnotation = "SAMPLE_NAME";
+    final static String headersAnnotation = "HEADERS";
+    final static String dataAnnotation = "DATA";
+
+    private final List<String> sampleNames;
+    private final int compoundCount;
+    private final int sampleCount;
+    private final String[] names;
+    private final String[] databaseIdentifiers;
+    private final double[] masses;
+    private final double[] intensities;
+    private final BitSet missing;
+
+    private MetabolonTable(List<String> sampleNames, int compoundCount, int sampleCount, String[] names,
+                           String[] databaseIdentifiers, double[] masses, double[] intensities, BitSet missing) {
+        this.sampleNames = Collections.unmodifiableList(sampleNames);
+        this.compoundCount = compoundCount;
+        this.sampleCount = sampleCount;
+        this.names = names;
+        this.databaseIdentifiers = databaseIdentifiers;
+        this.masses = masses;
+        this.intensities = intensities;
+        this.missing = missing;
+    }
+
+    /**
+     * @return the sample names from the SAMPLE_NAME row, used as MAF column headers
+     */
+    public List<String> getSampleNames() {
+        return sampleNames;
+    }
+
+    public int getCompoundCount() {
+        return compoundCount;
+    }
+
+    /**
+     * @return the number of sample columns in the matrix, the Metabolon columns after the SAMPLE_NAME label
+     */
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return the compound name, null if the row has no name
+     */
+    public String getName(int compound) {
+        return names[compound];
+    }
+
+    /**
+     * @return the HMDB id, or the KEGG id in case HMDB is not reported. Null if neither is
+     */
+    public String getDatabaseIdentifier(int compound) {
+        return databaseIdentifiers[compound];
+    }
+
+    /**
+     * @return the mass, NaN if the row has no mass cell
+     */
+    public double getMass(int compound) {
+        return masses[compound];
+    }
+
+    /**
+     * @return the peak area, 0 for missing values and NaN if the cell does not exist
+     */
+    public double getIntensity(int compound, int sample) {
+        return intensities[compound * sampleCount + sample];
+    }
+
+    public boolean isMissing(int compound, int sample) {
+        return missing.get(compound * sampleCount + sample);
+    }
+
+    /**
+     * @return the matrix, row-major: the peak area of a compound and sample is at compound * sampleCount + sample
+     */
+    public double[] getIntensities() {
+        return intensities;
+    }
+
+    /**
+     * @return what to search ChEBI / MetaboLights with, null if the compound has no name
+     */
+    public LookupKey getLookupKey(int compound) {
+        if (names[compound] == null)
+            return null;
+
+        String cleanMetName = names[compound].replaceAll("\\*",""); //Get rid of "*" (astrix) in compound names before searching
+        return new LookupKey(databaseIdentifiers[compound], cleanMetName);
+    }
+
+    /**
+     * Builds a MetabolonTable from the cells of the sheet, see {@link MetabolonRowHandler}.
+     * The columns are found by name when the HEADERS row has been read, until then the default Metabolon layout is
+     * used, see {@link MetabolonColumnMapping}
+     */
+    public static class Builder implements MetabolonRowHandler {
+
+        private final Function<String, String[]> compoundSplitter;
+        private final IntFunction<String> rowTypes;
+        private final MetabolonColumnMapping columnMapping;
+        private MetabolonColumnMapping.ColumnPlan plan = MetabolonColumnMapping.defaultPlan();
+        private int sampleLabelColumn = -1;
+        private final List<String> headerRow = new ArrayList<>();
+
+        private final List<String> sampleNames = new ArrayList<>();
+        private int compoundCount = 0;
+        private int sampleCount = 0;
+        private String[] names = new String[64];
+        private String[] databaseIdentifiers = new String[64];
+        private double[] masses = new double[64];
+        private double[] intensities = new double[0];
+        private BitSet missing = new BitSet();
+        private int rowCount = 0;
+        private int splitRowCount = 0;
+
+        //The current row
+        private String rowType;
+        private String name;
+        private String keggId;
+        private String hmdbId;
+        private double mass;
+        private int lastCellNum;
+        private double[] rowIntensities = new double[16];
+        private BitSet rowMissing = new BitSet();
+
+        /**
+         * @param compoundSplitter, gives the compound names to add for a row, or null to add the row as it is
+         * @param rowTypes, gives the row type (SAMPLE_NAME, DATA...) for a row number in the original sheet
+         */
+        public Builder(Function<String, String[]> compoundSplitter, IntFunction<String> rowTypes) {
+            this(compoundSplitter, rowTypes, MetabolonColumnMapping.defaultMapping());
+        }
+
+        /**
+         * @param compoundSplitter, gives the compound names to add for a row, or null to add the row as it is
+         * @param rowTypes, gives the row type (SAMPLE_NAME, DATA...) for a row number in the original sheet
+         * @param columnMapping, finds the compound columns by their name in the HEADERS row
+         */
+        public Builder(Function<String, String[]> compoundSplitter, IntFunction<String> rowTypes, MetabolonColumnMapping columnMapping) {
+            this.compoundSplitter = compoundSplitter;
+            this.rowTypes = rowTypes;
+            this.columnMapping = columnMapping;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            startRow(rowTypes.apply(rowNum));
+        }
+
+        /**
+         * Start a row with a known type, e.g. from the annotated sheet
+         * @param rowType
+         */
+        public void startRow(String rowType) {
+            this.rowType = rowType;
+            name = null;
+            keggId = null;
+            hmdbId = null;
+            mass = Double.NaN;
+            lastCellNum = 0;
+            Arrays.fill(rowIntensities, Double.NaN);
+            rowMissing.clear();
+        }
+
+        @Override
+        public void stringCell(int column, String value) {
+            lastCellNum = Math.max(lastCellNum, column + 1);
+            if (column == 0)
+                return; //Only has the row type
+
+            if (dataAnnotation.equals(rowType)) {
+                switch (plan.getRole(column)) {
+                    case MetabolonColumnMapping.ColumnPlan.NAME:
+                        name = value;
+                        break;
+                    case MetabolonColumnMapping.ColumnPlan.KEGG:
+                        if (value.length() > 2)
+                            keggId = value;
+                        break;
+                    case MetabolonColumnMapping.ColumnPlan.HMDB:
+                        if (value.length() > 2)
+                            hmdbId = value;
+                        break;
+                    case MetabolonColumnMapping.ColumnPlan.MASS:
+                        if (!value.isEmpty())
+                            throw new IllegalStateException("Cannot get a numeric value from a text cell in the mass column: " + value);
+                        mass = 0.0;
+                        break;
+                    case MetabolonColumnMapping.ColumnPlan.SAMPLE:
+                        if (value.isEmpty() || value.equals("."))
+                            setIntensity(column, 0.0, true);
+                        else
+                            setIntensity(column, Double.parseDouble(value), false);
+                        break;
+                    default:
+                        break;
+                }
+            } else if (sampleNameAnnotation.equals(rowType)) {
+                if (value.equals(sampleNameAnnotation))
+                    sampleLabelColumn = column; //The samples start after the label
+                addSampleName(value);
+            } else if (headersAnnotation.equals(rowType)) {
+                while (headerRow.size() <= column)
+                    headerRow.add(null);
+                headerRow.set(column, value);
+            }
+        }
+
+        @Override
+        public void numericCell(int column, double value) {
+            lastCellNum = Math.max(lastCellNum, column + 1);
+            if (column == 0)
+                return;
+
+            if (sampleNameAnnotation.equals(rowType)) {
+                addSampleName(Double.toString(value)); //Sample names can be text and/or numbers
+                return;
+            }
+
+            if (!dataAnnotation.equals(rowType))
+                return;
+
+            switch (plan.getRole(column)) {
+                case MetabolonColumnMapping.ColumnPlan.MASS:
+                    mass = value;
+                    break;
+                case MetabolonColumnMapping.ColumnPlan.SAMPLE:
+                    setIntensity(column, value, false);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void blankCell(int column) {
+            lastCellNum = Math.max(lastCellNum, column + 1);
+
+            if (!dataAnnotation.equals(rowType))
+                return;
+
+            switch (plan.getRole(column)) {
+                case MetabolonColumnMapping.ColumnPlan.NAME:
+                    name = "";
+                    break;
+                case MetabolonColumnMapping.ColumnPlan.MASS:
+                    mass = 0.0;
+                    break;
+                case MetabolonColumnMapping.ColumnPlan.SAMPLE:
+                    setIntensity(column, 0.0, true);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void addSampleName(String value) {
+            if (value.length() > 1 && !value.equals(sampleNameAnnotation))
+                sampleNames.add(value);
+        }
+
+        private void setIntensity(int column, double value, boolean isMissing) {
+            int sample = column - plan.getFirstSampleColumn();
+            if (sample >= rowIntensities.length) {
+                int length = rowIntensities.length;
+                rowIntensities = Arrays.copyOf(rowIntensities, Math.max(sample + 1, length * 2));
+                Arrays.fill(rowIntensities, length, rowIntensities.length, Double.NaN);
+            }
+
+            rowIntensities[sample] = value;
+            if (isMissing)
+                rowMissing.set(sample);
+        }
+
+        @Override
+        public void endRow() {
+            if (lastCellNum > 0)
+                rowCount++;
+
+            if (headersAnnotation.equals(rowType) && !headerRow.isEmpty()) {
+                plan = columnMapping.compile(headerRow, sampleLabelColumn);
+                headerRow.clear();
+            }
+
+            if (!dataAnnotation.equals(rowType) || lastCellNum == 0)
+                return;
+
+            String[] splitNames = name != null ? compoundSplitter.apply(name) : null;
+            if (splitNames == null) {
+                addCompound(name);
+                return;
+            }
+
+            splitRowCount++;
+
+            //A split row is copied cell by cell, so all the missing cells of both rows become blank cells
+            int massColumn = plan.getMassColumn();
+            if (massColumn >= 0 && lastCellNum > massColumn && Double.isNaN(mass))
+                mass = 0.0;
+            for (int column = plan.getFirstSampleColumn(); column < lastCellNum; column++) {
+                int sample = column - plan.getFirstSampleColumn();
+                if (sample >= rowIntensities.length || Double.isNaN(rowIntensities[sample]))
+                    setIntensity(column, 0.0, true);
+            }
+
+            for (String splitName : splitNames)
+                addCompound(splitName);
+        }
+
+        private void addCompound(String compoundName) {
+            int rowSampleCount = Math.max(0, lastCellNum - plan.getFirstSampleColumn());
+            if (rowSampleCount > sampleCount)
+                widen(rowSampleCount);
+
+            if (compoundCount == names.length) {
+                int capacity = names.length * 2;
+                names = Arrays.copyOf(names, capacity);
+                databaseIdentifiers = Arrays.copyOf(databaseIdentifiers, capacity);
+                masses = Arrays.copyOf(masses, capacity);
+            }
+            if ((compoundCount + 1) * sampleCount > intensities.length)
+                intensities = Arrays.copyOf(intensities, Math.max((compoundCount + 1) * sampleCount, intensities.length * 2));
+
+            names[compoundCount] = compoundName;
+            databaseIdentifiers[compoundCount] = hmdbId != null ? hmdbId : keggId; // KEGG, in case HMDB is not reported
+            masses[compoundCount] = mass;
+
+            int offset = compoundCount * sampleCount;
+            for (int sample = 0; sample < sampleCount; sample++) {
+                intensities[offset + sample] = sample < rowIntensities.length ? rowIntensities[sample] : Double.NaN;
+                if (rowMissing.get(sample) || Double.isNaN(intensities[offset + sample]))
+                    missing.set(offset + sample);
+            }
+
+            compoundCount++;
+        }
+
+        /**
+         * A row with more sample columns than the rows before it, move the existing compounds to the wider layout
+         */
+        private void widen(int newSampleCount) {
+            double[] newIntensities = new double[Math.max(newSampleCount * names.length, 16)];
+            BitSet newMissing = new BitSet();
+            Arrays.fill(newIntensities, Double.NaN);
+
+            for (int compound = 0; compound < compoundCount; compound++) {
+                System.arraycopy(intensities, compound * sampleCount, newIntensities, compound * newSampleCount, sampleCount);
+                for (int sample = 0; sample < newSampleCount; sample++) {
+                    if (sample >= sampleCount || missing.get(compound * sampleCount + sample))
+                        newMissing.set(compound * newSampleCount + sample);
+                }
+            }
+
+            intensities = newIntensities;
+            missing = newMissing;
+            sampleCount = newSampleCount;
+        }
+
+        /**
+         * @return the columns used for the DATA rows, the default layout until the HEADERS row is read
+         */
+        public MetabolonColumnMapping.ColumnPlan getColumnPlan() {
+            return plan;
+        }
+
+        /**
+         * @return the number of rows with at least one cell
+         */
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * @return the number of DATA rows added as more than one compound
+         */
+        public int getSplitRowCount() {
+            return splitRowCount;
+        }
+
+        public MetabolonTable build() {
+            return new MetabolonTable(new ArrayList<>(sampleNames), compoundCount, sampleCount,
+                    Arrays.copyOf(names, compoundCount), Arrays.copyOf(databaseIdentifiers, compoundCount),
+                    Arrays.copyOf(masses, compoundCount), Arrays.copyOf(intensities, compoundCount * sampleCount), missing);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Reads a Metabolon export saved as delimited text (.csv, .tsv, .txt) without POI. The file is memory-mapped and the
+ * fields are tokenized in place: numbers are parsed straight from the mapped bytes, only the text cells become
+ * Strings. The rows are handed to a {@link MetabolonRowHandler} the same way as by {@link MetabolonSheetReader}, so
+ * the table is the same as for the workbook Excel would make of the file:
+ * <ul>
+ *     <li>a field that is a plain decimal number (quoted or not) is a numeric cell, any other text a string cell</li>
+ *     <li>empty fields are cells that do not exist, lines without any value are rows that do not exist</li>
+ *     <li>the line number is the row number, so the row types are the same as in the sheet</li>
+ * </ul>
+ * Fields can be quoted with ", quotes inside a quoted field are doubled. The file is UTF-8, with or without a BOM.
+ */
+public class MetabolonTextReader {
+
+    private static final long windowSize = 1L << 30; //Bytes mapped at a time, a window ends at a line end
+
+    //Powers of ten that are exact doubles, so a decimal with up to 15 digits is converted with one rounding
+    private static final double[] powersOfTen = new double[23];
+    static {
+        powersOfTen[0] = 1;
+        for (int i = 1; i < powersOfTen.length; i++)
+            powersOfTen[i] = powersOfTen[i - 1] * 10;
+    }
+
+    private final byte delimiter;
+    private byte[] text = new byte[256];  //Reused for the text cells
+
+    /**
+     * @param delimiter, ',' or '\t'
+     */
+    public MetabolonTextReader(char delimiter) {
+        this.delimiter = (byte) delimiter;
+    }
+
+    /**
+     * @return a reader for the file: comma separated for .csv, tab separated for the others
+     */
+    public static MetabolonTextReader forFile(String fileName) {
+        return new MetabolonTextReader(fileName.toLowerCase(Locale.ROOT).endsWith(".csv") ? ',' : '\t');
+    }
+
+    /**
+     * @return true for the Metabolon text exports this class reads, .csv, .tsv and .txt
+     */
+    public static boolean isTextFile(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        return name.endsWith(".csv") || name.endsWith(".tsv") || name.endsWith(".txt");
+    }
+
+    /**
+     * Read the file
+     * @param fileName, the Metabolon text export
+     * @param rowHandler, receives the rows that have at least one value, in file order
+     */
+    public void read(String fileName, MetabolonRowHandler rowHandler) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(new File(fileName), "r");
+             FileChannel channel = file.getChannel()) {
+            long size = channel.size();
+            long position = 0;
+            int rowNum = 0;
+            boolean first = true;
+
+            while (position < size) {
+                long length = Math.min(windowSize, size - position);
+                boolean lastWindow = position + length == size;
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int limit = (int) length;
+
+                int start = 0;
+                if (first && limit >= 3 && buffer.get(0) == (byte) 0xEF && buffer.get(1) == (byte) 0xBB && buffer.get(2) == (byte) 0xBF)
+                    start = 3; //UTF-8 byte order mark
+                first = false;
+
+                while (start < limit) {
+                    int end = findLineEnd(buffer, start, limit);
+                    if (end == limit - 1 && !lastWindow && buffer.get(end) == '\r')
+                        end = -1; //Could be a \r\n split by the window
+                    if (end < 0) {
+                        if (!lastWindow)
+                            break; //The line goes on in the next window
+                        end = limit;
+                    }
+
+                    readLine(buffer, start, end, rowNum++, rowHandler);
+                    start = skipLineBreak(buffer, end, limit);
+                }
+
+                if (start == 0 && !lastWindow)
+                    throw new IOException("A line in " + fileName + " is longer than " + windowSize + " bytes");
+                position += start;
+            }
+        }
+    }
+
+    /**
+     * @return the position of the line break ending the line, outside of quoted fields. -1 if the line does not end
+     * before limit
+     */
+    private int findLineEnd(MappedByteBuffer buffer, int start, int limit) {
+        boolean quoted = false;
+        for (int i = start; i < limit; i++) {
+            byte b = buffer.get(i);
+            if (quoted) {
+                if (b == '"') {
+                    if (i + 1 < limit && buffer.get(i + 1) == '"')
+                        i++; //A quote in the field
+                    else
+                        quoted = false;
+                }
+            } else if (b == '\n' || b == '\r') {
+                return i;
+            } else if (b == '"' && (i == start || buffer.get(i - 1) == delimiter)) {
+                quoted = true; //Only a quote at the start of a field quotes it
+            }
+        }
+        return -1;
+    }
+
+    private static int skipLineBreak(MappedByteBuffer buffer, int end, int limit) {
+        if (end < limit && buffer.get(end) == '\r')
+            end++;
+        if (end < limit && buffer.get(end) == '\n')
+            end++;
+        return end;
+    }
+
+    /**
+     * Hand the fields of one line to the handler, the row is only started at its first value
+     */
+    private void readLine(MappedByteBuffer buffer, int start, int end, int rowNum, MetabolonRowHandler rowHandler) {
+        boolean rowStarted = false;
+        int column = 0;
+        int position = start;
+
+        while (position <= end) {
+            int fieldStart = position;
+            int fieldEnd;
+            boolean quoted = position < end && buffer.get(position) == '"';
+            boolean escapedQuotes = false;
+
+            if (quoted) {
+                int i = position + 1;
+                while (i < end) {
+                    if (buffer.get(i) == '"') {
+                        if (i + 1 < end && buffer.get(i + 1) == '"') {
+                            escapedQuotes = true;
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                fieldStart = position + 1;
+                fieldEnd = Math.min(i, end);
+                position = i + 1;
+                while (position < end && buffer.get(position) != delimiter) //Anything between the quote and the delimiter is dropped
+                    position++;
+            } else {
+                int i = position;
+                while (i < end && buffer.get(i) != delimiter)
+                    i++;
+                fieldEnd = i;
+                position = i;
+            }
+            position++; //After the delimiter
+
+            if (fieldEnd > fieldStart) {
+                if (!rowStarted) {
+                    rowHandler.startRow(rowNum);
+                    rowStarted = true;
+                }
+                readField(buffer, fieldStart, fieldEnd, escapedQuotes, column, rowHandler);
+            }
+            column++;
+        }
+
+        if (rowStarted)
+            rowHandler.endRow();
+    }
+
+    private void readField(MappedByteBuffer buffer, int start, int end, boolean escapedQuotes, int column, MetabolonRowHandler rowHandler) {
+        if (!escapedQuotes) {
+            double number = parseNumber(buffer, start, end);
+            if (!Double.isNaN(number)) {
+                rowHandler.numericCell(column, number);
+                return;
+            }
+        }
+        rowHandler.stringCell(column, decode(buffer, start, end, escapedQuotes));
+    }
+
+    private String decode(MappedByteBuffer buffer, int start, int end, boolean escapedQuotes) {
+        if (text.length < end - start)
+            text = new byte[Math.max(end - start, text.length * 2)];
+
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            text[length++] = b;
+            if (escapedQuotes && b == '"')
+                i++; //Skip the second quote
+        }
+        return new String(text, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parse a plain decimal number, e.g. -12, 0.5, 1.2E+07, surrounded by spaces or not
+     * @return the number, NaN if the field is not a plain decimal number
+     */
+    static double parseNumber(MappedByteBuffer buffer, int start, int end) {
+        while (start < end && buffer.get(start) == ' ')
+            start++;
+        while (end > start && buffer.get(end - 1) == ' ')
+            end--;
+        if (start == end)
+            return Double.NaN;
+
+        int i = start;
+        boolean negative = false;
+        byte b = buffer.get(i);
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;           //Significant digits in the mantissa
+        int exponent = 0;
+        boolean anyDigit = false;
+        boolean inFraction = false;
+        for (; i < end; i++) {
+            b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                anyDigit = true;
+                if (mantissa == 0 && b == '0') { //Leading zeros are not significant
+                    if (inFraction)
+                        exponent--;
+                    continue;
+                }
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    if (inFraction)
+                        exponent--;
+                } else {
+                    digits++; //Too many digits for the fast path, counted to fall back
+                    if (!inFraction)
+                        exponent++;
+                }
+            } else if (b == '.' && !inFraction) {
+                inFraction = true;
+            } else {
+                break;
+            }
+        }
+        if (!anyDigit)
+            return Double.NaN;
+
+        if (i < end) { //Exponent
+            b = buffer.get(i);
+            if (b != 'e' && b != 'E')
+                return Double.NaN;
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                negativeExponent = buffer.get(i) == '-';
+                i++;
+            }
+            if (i == end)
+                return Double.NaN;
+            int value = 0;
+            for (; i < end; i++) {
+                b = buffer.get(i);
+                if (b < '0' || b > '9')
+                    return Double.NaN;
+                if (value < 100000)
+                    value = value * 10 + (b - '0');
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+
+        double value;
+        if (mantissa == 0) {
+            value = 0;
+        } else if (digits <= 15 && exponent >= -22 && exponent <= 22) {
+            value = exponent < 0 ? mantissa / powersOfTen[-exponent] : mantissa * powersOfTen[exponent]; //Exact inputs, one rounding
+        } else {
+            byte[] bytes = new byte[end - start]; //Rare, let the JDK round it
+            for (int j = 0; j < bytes.length; j++)
+                bytes[j] = buffer.get(start + j);
+            return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+        }
+        return negative ? -value : value;
+    }
+}
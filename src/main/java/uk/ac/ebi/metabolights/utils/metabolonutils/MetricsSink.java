@@ -0,0 +1,11 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+/**
+ * Receives the metrics of every finished conversion, e.g. to write a run report or to forward them to a
+ * monitoring system. Must be thread safe, conversions can finish at the same time.
+ */
+public interface MetricsSink {
+
+    void publish(ConversionMetrics metrics);
+
+}
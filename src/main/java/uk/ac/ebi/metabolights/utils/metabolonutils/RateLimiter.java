@@ -0,0 +1,39 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out permits at a fixed rate, shared by all the threads calling {@link #acquire()}
+ */
+public class RateLimiter {
+
+    private final long intervalNanos;
+    private long nextPermit;
+
+    /**
+     * @param permitsPerSecond, zero or less for no limit
+     */
+    public RateLimiter(double permitsPerSecond) {
+        this.intervalNanos = permitsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond) : 0;
+        this.nextPermit = System.nanoTime();
+    }
+
+    /**
+     * Wait until the next permit is available
+     */
+    public void acquire() throws InterruptedException {
+        if (intervalNanos == 0)
+            return;
+
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long permit = Math.max(now, nextPermit);
+            nextPermit = permit + intervalNanos;
+            waitNanos = permit - now;
+        }
+
+        if (waitNanos > 0)
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+}
@@ -0,0 +1,263 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.isatools.plugins.metabolights.assignments.model.Metabolite;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Puts a deadline on every call to another MetaboliteLookup (normally SearchUtils), retries failed calls and stops
+ * calling it for a while when it keeps failing, so a slow or broken web service can not stall a conversion.
+ *
+ * A call that does not finish within the timeout is abandoned, its thread is left to finish on its own. Failed calls
+ * are retried with an exponential backoff and random jitter. After failureThreshold failed calls in a row the circuit
+ * opens and calls fail straight away for openMillis, then one call is let through to see if the service is back.
+ *
+ * When a call gives up a LookupUnavailableException is thrown, so the compounds are left unresolved in the MAF
+ * (and not cached as unknown by a MetaboliteCache in front of this lookup). They are kept in a list that can be
+ * written to a file and resolved again later, see {@link #writeUnresolved(File)}.
+ */
+public class ResilientMetaboliteLookup implements MetaboliteLookup, Closeable {
+
+    public static final long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_BACKOFF = 500;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private enum CircuitState { CLOSED, OPEN, HALF_OPEN }
+
+    private final MetaboliteLookup delegate;
+    private final long timeoutMillis;
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final ExecutorService callExecutor;
+    private final Set<LookupKey> unresolved = new LinkedHashSet<>();
+
+    private CircuitState circuitState = CircuitState.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private long timeouts = 0;
+    private long retries = 0;
+    private long rejected = 0;
+
+    public ResilientMetaboliteLookup(MetaboliteLookup delegate) {
+        this(delegate, DEFAULT_TIMEOUT, DEFAULT_MAX_ATTEMPTS, DEFAULT_BACKOFF, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+    }
+
+    /**
+     * @param delegate, the lookup calling the web services
+     * @param timeoutMillis, the deadline of one call, in milliseconds
+     * @param maxAttempts, the number of times a call is tried, 1 for no retries
+     * @param backoffMillis, the wait before the first retry, doubled for every retry and randomised
+     * @param failureThreshold, the number of failed calls in a row that opens the circuit
+     * @param openMillis, how long the circuit stays open before a call is tried again
+     */
+    public ResilientMetaboliteLookup(MetaboliteLookup delegate, long timeoutMillis, int maxAttempts, long backoffMillis,
+                                     int failureThreshold, long openMillis) {
+        this.delegate = delegate;
+        this.timeoutMillis = timeoutMillis;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffMillis = backoffMillis;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.callExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "metabolite-call-" + threadCount.incrementAndGet());
+            thread.setDaemon(true); //A hung call must not keep the JVM alive
+            return thread;
+        });
+    }
+
+    @Override
+    public Metabolite resolve(LookupKey key) {
+        return call(() -> delegate.resolve(key), Collections.singletonList(key));
+    }
+
+    @Override
+    public Map<LookupKey, Metabolite> resolveAll(Collection<LookupKey> keys) {
+        return call(() -> delegate.resolveAll(keys), keys);
+    }
+
+    private <T> T call(Callable<T> lookupCall, Collection<LookupKey> keys) {
+        Exception lastFailure = null;
+
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            if (!allowCall()) {
+                if (lastFailure == null) //Else keep the failure that opened the circuit
+                    lastFailure = new IllegalStateException("the circuit is open");
+                break;
+            }
+
+            Future<T> future = callExecutor.submit(lookupCall);
+            try {
+                T result = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+                succeeded(keys);
+                return result;
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                synchronized (this) {
+                    timeouts++;
+                }
+                lastFailure = new TimeoutException("no answer after " + timeoutMillis + " ms");
+            } catch (ExecutionException e) {
+                lastFailure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                lastFailure = e;
+                break;
+            }
+
+            failed();
+            if (attempt < maxAttempts && !sleepBeforeRetry(attempt))
+                break;
+        }
+
+        synchronized (this) {
+            unresolved.addAll(keys);
+        }
+        throw new LookupUnavailableException("Could not resolve " + keys.size() + " compounds: " + lastFailure, lastFailure);
+    }
+
+    /**
+     * @return false if the circuit is open, or half open with a call already trying the service
+     */
+    private synchronized boolean allowCall() {
+        if (circuitState == CircuitState.CLOSED)
+            return true;
+
+        if (circuitState == CircuitState.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            circuitState = CircuitState.HALF_OPEN; //Let this call find out if the service is back
+            Log.info("Trying the metabolite web services again");
+            return true;
+        }
+
+        rejected++;
+        return false;
+    }
+
+    private synchronized void succeeded(Collection<LookupKey> keys) {
+        unresolved.removeAll(keys);
+        if (circuitState != CircuitState.CLOSED)
+            Log.info("The metabolite web services are back");
+        circuitState = CircuitState.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    private synchronized void failed() {
+        consecutiveFailures++;
+        if (circuitState == CircuitState.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            if (circuitState != CircuitState.OPEN)
+                Log.warn("The metabolite web services failed "+consecutiveFailures+" times in a row, not calling them for "+openMillis+" ms");
+            circuitState = CircuitState.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return false if interrupted
+     */
+    private boolean sleepBeforeRetry(int attempt) {
+        long backoff = backoffMillis << Math.min(attempt - 1, 16);
+        long sleep = backoff / 2 + (long) (ThreadLocalRandom.current().nextDouble() * backoff);
+        synchronized (this) {
+            retries++;
+        }
+        try {
+            Thread.sleep(sleep);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return the compounds that could not be resolved because the service failed, not the compounds it did not know
+     */
+    public synchronized Set<LookupKey> getUnresolved() {
+        return new LinkedHashSet<>(unresolved);
+    }
+
+    public synchronized void clearUnresolved() {
+        unresolved.clear();
+    }
+
+    /**
+     * Write the unresolved compounds, one per line: the database id and the name, tab separated. Nothing is written,
+     * and an existing file is deleted, when there are none
+     * @param unresolvedFile
+     */
+    public void writeUnresolved(File unresolvedFile) throws IOException {
+        Set<LookupKey> keys = getUnresolved();
+        if (keys.isEmpty()) {
+            Files.deleteIfExists(unresolvedFile.toPath());
+            return;
+        }
+
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(unresolvedFile), StandardCharsets.UTF_8))) {
+            for (LookupKey key : keys)
+                writer.write((key.getDbId() != null ? key.getDbId() : "") + "\t" + key.getName().replace("\t", " ") + "\n");
+        }
+        Log.warn(keys.size()+" compounds could not be resolved, they are listed in "+unresolvedFile);
+    }
+
+    /**
+     * @param unresolvedFile, written by {@link #writeUnresolved(File)}
+     * @return the compounds, empty if there is no file
+     */
+    public static List<LookupKey> readUnresolved(File unresolvedFile) throws IOException {
+        List<LookupKey> keys = new ArrayList<>();
+        if (!unresolvedFile.exists())
+            return keys;
+
+        for (String line : Files.readAllLines(unresolvedFile.toPath(), StandardCharsets.UTF_8)) {
+            String[] values = line.split("\t", -1);
+            if (values.length == 2)
+                keys.add(new LookupKey(values[0].isEmpty() ? null : values[0], values[1]));
+        }
+        return keys;
+    }
+
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return the number of calls refused because the circuit was open
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public synchronized boolean isCircuitOpen() {
+        return circuitState == CircuitState.OPEN;
+    }
+
+    @Override
+    public void close() {
+        callExecutor.shutdownNow();
+        Log.info("Metabolite lookups: "+timeouts+" timed out, "+retries+" retried, "+rejected+" refused by the circuit breaker");
+    }
+
+    /**
+     * The lookup gave up, the compounds are not known to be unknown
+     */
+    public static class LookupUnavailableException extends RuntimeException {
+        public LookupUnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
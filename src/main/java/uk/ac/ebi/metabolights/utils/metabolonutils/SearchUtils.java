@@ -28,12 +28,99 @@ import uk.ac.ebi.chebi.webapps.chebiWS.model.*;
 import javax.xml.namespace.QName;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class SearchUtils {
+public class SearchUtils implements MetaboliteLookup {
+
+    /**
+     * Where compounds are resolved: the ChEBI and MetaboLights web services, a local ChebiIndex, or the index
+     * first and the web services for the compounds the index does not have
+     */
+    public enum LookupMode { ONLINE, OFFLINE, OFFLINE_THEN_ONLINE }
 
     //ChEBI WS stuff
     private final String chebiWSUrl = "http://www.ebi.ac.uk/webservices/chebi/2.0/webservice?wsdl";
     private ChebiWebServiceClient chebiWS;
+    private final static int chebiListSize = 50; //Maximum number of ids in one getCompleteEntityByList request
+    private final static String notFound = "";   //ConcurrentHashMap does not take null values
+    private boolean useChebiEntities = true;
+    private ChebiIndex chebiIndex;
+    private LookupMode lookupMode = LookupMode.ONLINE;
+
+    //The ChEBI ids found for HMDB ids and for compound names, so every term is only searched once
+    private final Map<String, String> hmdbChebiIds = new ConcurrentHashMap<>();
+    private final Map<String, String> nameChebiIds = new ConcurrentHashMap<>();
+
+    private final AtomicLong requestsMade = new AtomicLong();
+    private final AtomicLong requestsAvoided = new AtomicLong();
+
+    /**
+     * Search by the external id first, then by name as the compounds may be synonyms. This is a batch of one for
+     * {@link #resolveAll(Collection)}, so the fields come from the same web service whatever the batch size
+     * @param key, the external id and cleaned name of the compound
+     * @return Metabolite, with a null identifier if nothing was found
+     */
+    @Override
+    public Metabolite resolve(LookupKey key) {
+        return resolveAll(Collections.singletonList(key)).get(key);
+    }
+
+    /**
+     * Resolve a batch of compounds. Duplicate keys, HMDB ids and names are only searched once, and the ChEBI
+     * entities are fetched in bulk with getCompleteEntityByList instead of one MetaboLights WS request per compound.
+     * @param keys, the compounds to resolve
+     * @return Map, the Metabolite for each distinct key
+     * @throws ChebiFaultException, when ChEBI answers with a fault, nothing is resolved
+     */
+    @Override
+    public Map<LookupKey, Metabolite> resolveAll(Collection<LookupKey> keys) {
+        Set<LookupKey> distinctKeys = new LinkedHashSet<>(keys);
+        requestsAvoided.addAndGet(keys.size() - distinctKeys.size());   //At least one request for every repeated key
+        Map<LookupKey, Metabolite> resolved = new LinkedHashMap<>();
+
+        if (isOffline()) {
+            for (Iterator<LookupKey> iterator = distinctKeys.iterator(); iterator.hasNext(); ) {
+                LookupKey key = iterator.next();
+                Metabolite met = chebiIndex.resolve(key);
+                if (met != null || lookupMode == LookupMode.OFFLINE) {
+                    resolved.put(key, met != null ? met : new Metabolite());
+                    iterator.remove();
+                }
+            }
+        }
+
+        //Search by the external ids first
+        Map<LookupKey, String> identifiers = new LinkedHashMap<>();
+        distinctKeys.forEach(key -> {
+            if (key.getDbId() != null)
+                identifiers.put(key, getIdentifierForDbId(key.getDbId()));
+        });
+        Map<String, Metabolite> metabolites = getMetabolites(new LinkedHashSet<>(identifiers.values()));
+        identifiers.forEach((key, identifier) -> resolved.put(key, metabolites.get(identifier)));
+
+        //Then by name, for everything that is not found yet
+        Map<LookupKey, String> nameIdentifiers = new LinkedHashMap<>();
+        distinctKeys.forEach(key -> {
+            Metabolite met = resolved.get(key);
+            if (met == null || met.getIdentifier() == null) {
+                String chebiId = key.getName() != null ? getChebiIdForName(key.getName()) : null;
+                if (chebiId != null)
+                    nameIdentifiers.put(key, chebiId);
+                else
+                    resolved.put(key, new Metabolite());
+            }
+        });
+
+        Set<String> newIdentifiers = new LinkedHashSet<>(nameIdentifiers.values());
+        newIdentifiers.removeAll(metabolites.keySet());
+        requestsAvoided.addAndGet(nameIdentifiers.size() - newIdentifiers.size());
+        metabolites.putAll(getMetabolites(newIdentifiers));
+        nameIdentifiers.forEach((key, chebiId) -> resolved.put(key, metabolites.get(chebiId)));
+
+        return resolved;
+    }
 
     public Metabolite getMetaboliteInformation(String identifier, String metaboliteName){
         // search by compound name
@@ -42,81 +129,243 @@ public class SearchUtils {
         //       if (metabolite != null && identifier == null)
         //           met = AutoCompletionAction.getMetaboliteFromMetaboLightWS(AutoCompletionAction.DESCRIPTION_COL_NAME, metabolite);
 
-        String chebiId = identifier, dataType = "externalId";
+        if (identifier != null)
+            return getMetaboLightsMetabolite(getIdentifierForDbId(identifier));
 
-        if (identifier != null) {
+        if (metaboliteName != null) {
+            String chebiId = getChebiIdForName(metaboliteName);
 
-            if (identifier.toLowerCase().contains("hmdb")) {
-                String newHmdbId = identifier;
+            if (chebiId != null)
+                return getMetaboLightsMetabolite(chebiId);
+        }
 
-                //Change HMDB06029 to HMDB0006029
-                if (identifier.length() <= 9) // Old HMDB namespace
-                    newHmdbId = identifier.replace("HMDB0","HMDB000");
 
-                try {
-                    LiteEntityList chebiList = getChebiEntity(newHmdbId, dataType);
+        return met;
+    }
 
-                    for (LiteEntity le: chebiList.getListElement()){
-                        chebiId = le.getChebiId();
-                        break; //Only want the first entity
-                    }
+    /**
+     * Get the ChEBI id for an HMDB id. Other ids (e.g. KEGG) are used as they are
+     * @param identifier, the external id reported by Metabolon
+     * @return the ChEBI id, or the identifier itself if ChEBI does not know it
+     */
+    private String getIdentifierForDbId(String identifier){
+        if (!identifier.toLowerCase().contains("hmdb"))
+            return identifier;
 
-                } catch (ChebiWebServiceFault_Exception e) {
-                    e.printStackTrace();
-                }
+        String newHmdbId = identifier;
 
-            }
-            return AutoCompletionAction.getMetaboliteFromMetaboLightWS(AutoCompletionAction.IDENTIFIER_COL_NAME, chebiId);
+        //Change HMDB06029 to HMDB0006029
+        if (identifier.length() <= 9) // Old HMDB namespace
+            newHmdbId = identifier.replace("HMDB0","HMDB000");
+
+        String chebiId = hmdbChebiIds.get(newHmdbId);
+        if (chebiId != null) {
+            requestsAvoided.incrementAndGet();
+            return chebiId.equals(notFound) ? identifier : chebiId;
         }
 
-        if (metaboliteName != null) {
+        try {
+            LiteEntityList chebiList = getChebiEntity(newHmdbId, "externalId");
+            chebiId = getFirstChebiId(chebiList);
+            hmdbChebiIds.put(newHmdbId, chebiId != null ? chebiId : notFound);
+        } catch (ChebiWebServiceFault_Exception e) {
+            throw new ChebiFaultException(e);
+        }
 
-                try {
+        return chebiId != null ? chebiId : identifier;
+    }
+
+    /**
+     * @param metaboliteName, the compound name
+     * @return the ChEBI id of the first compound with this name or synonym, null if there is none
+     */
+    private String getChebiIdForName(String metaboliteName){
+        String name = LookupKey.normaliseName(metaboliteName);
+        if (name == null)
+            return null;
+
+        String chebiId = nameChebiIds.get(name);
+        if (chebiId != null) {
+            requestsAvoided.incrementAndGet();
+            return chebiId.equals(notFound) ? null : chebiId;
+        }
+
+        try {
+            LiteEntityList chebiList = getChebiEntity(metaboliteName, "compoundName");
+            chebiId = getFirstChebiId(chebiList); //Only want the first entity. Should only be one anyway.
+            nameChebiIds.put(name, chebiId != null ? chebiId : notFound);
+        } catch (ChebiWebServiceFault_Exception e) {
+            throw new ChebiFaultException(e);
+        }
+
+        return chebiId;
+    }
+
+    private String getFirstChebiId(LiteEntityList chebiList){
+        for (LiteEntity le: chebiList.getListElement()){
+            return le.getChebiId(); //Only want the first entity
+        }
+        return null;
+    }
 
-                    LiteEntityList chebiList = getChebiEntity(metaboliteName, "compoundName");
+    Metabolite getMetaboLightsMetabolite(String identifier){
+        requestsMade.incrementAndGet();
+        return AutoCompletionAction.getMetaboliteFromMetaboLightWS(AutoCompletionAction.IDENTIFIER_COL_NAME, identifier);
+    }
 
-                    for (LiteEntity le: chebiList.getListElement()){
-                        chebiId = le.getChebiId();
-                        break; //Only want the first entity. Should only be one anyway.
-                    }
+    /**
+     * Get the metabolites for a set of identifiers. ChEBI ids are fetched in bulk from ChEBI, all other ids (and the
+     * ChEBI ids ChEBI did not return) one by one from the MetaboLights WS
+     * @param identifiers, distinct identifiers
+     * @return Map, the Metabolite for each identifier
+     */
+    private Map<String, Metabolite> getMetabolites(Collection<String> identifiers){
+        Map<String, Metabolite> metabolites = new HashMap<>();
 
+        if (useChebiEntities) {
+            List<String> chebiIds = new ArrayList<>();
+            identifiers.forEach(identifier -> {
+                if (identifier.toUpperCase().startsWith("CHEBI:"))
+                    chebiIds.add(identifier);
+            });
+
+            for (int i = 0; i < chebiIds.size(); i += chebiListSize) {
+                List<String> chebiIdList = chebiIds.subList(i, Math.min(i + chebiListSize, chebiIds.size()));
+                try {
+                    requestsMade.incrementAndGet();
+                    requestsAvoided.addAndGet(chebiIdList.size() - 1);
+                    List<Entity> entities = getCompleteEntities(chebiIdList);
+                    for (Entity entity : entities)
+                        metabolites.put(entity.getChebiId(), getMetabolite(entity));
                 } catch (ChebiWebServiceFault_Exception e) {
-                    e.printStackTrace();
+                    throw new ChebiFaultException(e);
                 }
-
-                if (chebiId != null)
-                    return AutoCompletionAction.getMetaboliteFromMetaboLightWS(AutoCompletionAction.IDENTIFIER_COL_NAME, chebiId);
+            }
         }
 
+        identifiers.forEach(identifier -> {
+            if (!metabolites.containsKey(identifier))
+                metabolites.put(identifier, getMetaboLightsMetabolite(identifier));
+        });
+
+        return metabolites;
+    }
+
+    private Metabolite getMetabolite(Entity entity){
+        Metabolite met = new Metabolite();
+        met.setIdentifier(entity.getChebiId());
+        met.setSmiles(entity.getSmiles());
+        met.setInchi(entity.getInchi());
+
+        for (DataItem formula : entity.getFormulae()) {
+            met.setFormula(formula.getData());
+            break; //Only want the first formula
+        }
 
         return met;
     }
 
-    public ChebiWebServiceClient getChebiWS() {
+    private boolean isOffline() {
+        return chebiIndex != null && lookupMode != LookupMode.ONLINE;
+    }
+
+    public ChebiIndex getChebiIndex() {
+        return chebiIndex;
+    }
+
+    /**
+     * @param chebiIndex, the local index used in the OFFLINE and OFFLINE_THEN_ONLINE modes
+     */
+    public void setChebiIndex(ChebiIndex chebiIndex) {
+        this.chebiIndex = chebiIndex;
+    }
+
+    public LookupMode getLookupMode() {
+        return lookupMode;
+    }
+
+    /**
+     * @param lookupMode, ONLINE (default) uses the web services only. The offline modes need a ChebiIndex
+     */
+    public void setLookupMode(LookupMode lookupMode) {
+        this.lookupMode = lookupMode;
+    }
+
+    public boolean isUseChebiEntities() {
+        return useChebiEntities;
+    }
+
+    /**
+     * @param useChebiEntities, fetch ChEBI ids in bulk from ChEBI in {@link #resolveAll(Collection)}, instead of
+     *                          one by one from the MetaboLights WS
+     */
+    public void setUseChebiEntities(boolean useChebiEntities) {
+        this.useChebiEntities = useChebiEntities;
+    }
+
+    /**
+     * @return the number of requests sent to the ChEBI and MetaboLights web services
+     */
+    public long getRequestsMade() {
+        return requestsMade.get();
+    }
+
+    /**
+     * @return the number of requests that were not sent because the answer was already known, or because they were
+     * part of a bulk request. This is a lower bound, a repeated key counts as one request.
+     */
+    public long getRequestsAvoided() {
+        return requestsAvoided.get();
+    }
+
+    public synchronized ChebiWebServiceClient getChebiWS() { //The same client is shared by the lookup threads
         if (chebiWS == null)
             try {
-                System.out.println("Starting a new instance of the ChEBI ChebiWebServiceClient");
+                Log.info("Starting a new instance of the ChEBI ChebiWebServiceClient");
                 chebiWS = new ChebiWebServiceClient(new URL(chebiWSUrl),new QName("https://www.ebi.ac.uk/webservices/chebi",	"ChebiWebServiceService"));
             } catch (MalformedURLException e) {
-                System.out.println("Error instanciating a new ChebiWebServiceClient "+ e.getMessage());
+                Log.warn("Error instanciating a new ChebiWebServiceClient "+ e.getMessage());
             }
         return chebiWS;
     }
 
-    private LiteEntityList getChebiEntity(String searchTerm, String dataType) throws ChebiWebServiceFault_Exception {
+    /**
+     * @param chebiIds, at most chebiListSize ChEBI ids
+     * @return the complete ChEBI entities of the ids ChEBI knows
+     */
+    List<Entity> getCompleteEntities(List<String> chebiIds) throws ChebiWebServiceFault_Exception {
+        return getChebiWS().getCompleteEntityByList(chebiIds);
+    }
+
+    LiteEntityList getChebiEntity(String searchTerm, String dataType) throws ChebiWebServiceFault_Exception {
 
         if (dataType.equals("compoundName")) {
+            requestsMade.incrementAndGet();
             LiteEntityList liteEntityList = getChebiWS().getLiteEntity(searchTerm, SearchCategory.CHEBI_NAME, 1, StarsCategory.ALL);
 
-            if (liteEntityList.getListElement().isEmpty())
+            if (liteEntityList.getListElement().isEmpty()) {
+                requestsMade.incrementAndGet();
                 liteEntityList = getChebiWS().getLiteEntity(searchTerm, SearchCategory.ALL_NAMES, 1, StarsCategory.ALL);
+            }
 
             return liteEntityList;
         }
 
-        if (dataType.equals("externalId"))
+        if (dataType.equals("externalId")) {
+            requestsMade.incrementAndGet();
             return getChebiWS().getLiteEntity(searchTerm, SearchCategory.DATABASE_LINK_REGISTRY_NUMBER_CITATION, 1, StarsCategory.ALL);
+        }
 
         return null;
     }
+
+    /**
+     * ChEBI answered with a fault, e.g. when it is down or overloaded. The compounds of the call are not known to be
+     * unknown, so nothing is cached for them and the call can be tried again
+     */
+    public static class ChebiFaultException extends RuntimeException {
+        public ChebiFaultException(ChebiWebServiceFault_Exception cause) {
+            super("ChEBI web service fault: " + cause.getMessage(), cause);
+        }
+    }
 }
@@ -0,0 +1,58 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes the same MAF rows to two sinks, e.g. the MAF file and its {@link ColumnarMafSink} export, so both are written
+ * from the one pass over the compounds.
+ */
+public class TeeMafSink implements MafSink {
+
+    private final MafSink first;
+    private final MafSink second;
+
+    public TeeMafSink(MafSink first, MafSink second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    @Override
+    public void writeHeader(List<String> headers) throws IOException {
+        first.writeHeader(headers);
+        second.writeHeader(headers);
+    }
+
+    @Override
+    public void writeRow(Object[] values) throws IOException {
+        first.writeRow(values);
+        second.writeRow(values);
+    }
+
+    /**
+     * @return the rows encoded by each sink
+     */
+    @Override
+    public Object encodeRow(Object[] values) {
+        return new Object[] { first.encodeRow(values), second.encodeRow(values) };
+    }
+
+    @Override
+    public void writeEncodedRow(Object encodedRow) throws IOException {
+        Object[] encodedRows = (Object[]) encodedRow;
+        first.writeEncodedRow(encodedRows[0]);
+        second.writeEncodedRow(encodedRows[1]);
+    }
+
+    /**
+     * Close both sinks, the second one even if closing the first one fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            first.close();
+        } finally {
+            second.close();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a MetaboLights MAF file (m_*.tsv): UTF-8, tab separated, every value in double quotes as in ISA-Tab.
+ * Rows are written through a buffer as they come, nothing is kept in memory. A file name ending in .gz is gzipped.
+ */
+public class TsvMafSink implements MafSink {
+
+    private static final int bufferSize = 1 << 16;
+
+    private final Writer writer;
+    private final StringBuilder line = new StringBuilder();
+
+    public TsvMafSink(File outputFile) throws IOException {
+        this(outputFile, outputFile.getName().toLowerCase().endsWith(".gz"));
+    }
+
+    /**
+     * @param writer, where the MAF is written, closed with this sink
+     */
+    public TsvMafSink(Writer writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * @param outputFile, the MAF file to create
+     * @param gzip, compress the file
+     */
+    public TsvMafSink(File outputFile, boolean gzip) throws IOException {
+        OutputStream outputStream = new FileOutputStream(outputFile);
+        try {
+            if (gzip)
+                outputStream = new GZIPOutputStream(outputStream, bufferSize);
+            this.writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), bufferSize);
+        } catch (IOException e) {
+            outputStream.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void writeHeader(List<String> headers) throws IOException {
+        writeLine(headers.toArray());
+    }
+
+    @Override
+    public void writeRow(Object[] values) throws IOException {
+        writeLine(values);
+    }
+
+    /**
+     * @return the line, with the line break
+     */
+    @Override
+    public Object encodeRow(Object[] values) {
+        StringBuilder encodedLine = new StringBuilder(values.length * 12);
+        appendLine(encodedLine, values);
+        return encodedLine.toString();
+    }
+
+    @Override
+    public void writeEncodedRow(Object encodedRow) throws IOException {
+        writer.write((String) encodedRow);
+    }
+
+    /**
+     * Write a line of a previous MAF file as it is, see {@link #readLines(File)}
+     * @param previousLine, without the line break
+     */
+    public void copyLine(String previousLine) throws IOException {
+        writer.append(previousLine).append('\n');
+    }
+
+    /**
+     * @param mafFile, a MAF file written by this class, gzipped if the name ends in .gz
+     * @return the lines, the header first
+     */
+    public static List<String> readLines(File mafFile) throws IOException {
+        InputStream inputStream = Files.newInputStream(mafFile.toPath());
+        if (mafFile.getName().toLowerCase().endsWith(".gz"))
+            inputStream = new GZIPInputStream(inputStream, bufferSize);
+
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8), bufferSize)) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                lines.add(line);
+        }
+        return lines;
+    }
+
+    private void writeLine(Object[] values) throws IOException {
+        line.setLength(0);
+        appendLine(line, values);
+        writer.append(line);
+    }
+
+    private static void appendLine(StringBuilder line, Object[] values) {
+        int length = values.length;
+        while (length > 0 && values[length - 1] == null)
+            length--; //No trailing columns without cells
+
+        for (int i = 0; i < length; i++) {
+            if (i > 0)
+                line.append('\t');
+            line.append('"');
+            if (values[i] instanceof Double)
+                line.append(formatNumber((Double) values[i]));
+            else if (values[i] != null)
+                appendText(line, values[i].toString());
+            line.append('"');
+        }
+        line.append('\n');
+    }
+
+    private static void appendText(StringBuilder line, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':  line.append("\"\""); break;
+                case '\t':
+                case '\n':
+                case '\r': line.append(' '); break; //Would break the row
+                default:   line.append(c);
+            }
+        }
+    }
+
+    /**
+     * @return the number without exponent or trailing zeros, e.g. 1234567.5 and not 1.2345675E6
+     */
+    static String formatNumber(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            return Double.toString(value);
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
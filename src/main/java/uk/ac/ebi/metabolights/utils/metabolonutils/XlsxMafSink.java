@@ -0,0 +1,53 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+
+import java.util.List;
+
+/**
+ * Writes the MAF rows to a sheet, the header in the first row. The workbook is written and closed by the caller.
+ * Only the cells with a value are created: the empty MAF columns ("" or null) have no cell, which reads the same
+ * and keeps the rows small in memory and in the file
+ */
+public class XlsxMafSink implements MafSink {
+
+    private final Sheet sheet;
+    private int nextRowNum;
+
+    public XlsxMafSink(Sheet sheet) {
+        this.sheet = sheet;
+        this.nextRowNum = sheet.getLastRowNum() + 1; //Don't overwrite the last or header row
+    }
+
+    @Override
+    public void writeHeader(List<String> headers) {
+        Row headerRow = sheet.createRow(0);
+        nextRowNum = 1;
+        for (int i = 0; i < headers.size(); i++)
+            headerRow.createCell(i).setCellValue(headers.get(i));
+    }
+
+    @Override
+    public void writeRow(Object[] values) {
+        Row newRow = sheet.createRow(nextRowNum++);
+        for (int i = 0; i < values.length; i++) {
+            Object value = values[i];
+            if (value instanceof Double) {
+                newRow.createCell(i).setCellValue((Double) value);
+            } else if (value != null) {
+                String text = value.toString();
+                if (!text.isEmpty())
+                    newRow.createCell(i).setCellValue(text);
+            }
+        }
+    }
+
+    public Sheet getSheet() {
+        return sheet;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,94 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompoundNameParserTest {
+
+    @Test
+    public void singleCompoundsAreNotSplit() {
+        assertNull(CompoundNameParser.split("glucose"));
+        assertNull(CompoundNameParser.split("PC(16:0/18:1)"));
+        assertNull(CompoundNameParser.split("1-palmitoyl-2-oleoyl-GPC (16:0/18:1)"));
+        assertNull(CompoundNameParser.split("TG[16:0/(18:1/18:2)]"));
+        assertNull(CompoundNameParser.split(""));
+        assertNull(CompoundNameParser.split(null));
+        assertEquals(0, CompoundNameParser.countSplitPoints(null));
+        assertFalse(CompoundNameParser.needsSplitting("PC(16:0/18:1)"));
+    }
+
+    @Test
+    public void compoundsAreSplitOutsideOfBrackets() {
+        assertArrayEquals(new String[] { "glucose", "fructose" }, CompoundNameParser.split("glucose/fructose"));
+        assertArrayEquals(new String[] { "PC(16:0/18:1)", "PE(18:0/20:4)" }, CompoundNameParser.split("PC(16:0/18:1)/PE(18:0/20:4)"));
+        assertArrayEquals(new String[] { "TG[16:0/(18:1/18:2)]", "DG(18:1/[20:4/22:6])", "serine" },
+                CompoundNameParser.split("TG[16:0/(18:1/18:2)]/DG(18:1/[20:4/22:6])/serine"));
+        assertArrayEquals(new String[] { "a ", " b" }, CompoundNameParser.split("a / b")); //Spaces are kept
+        assertEquals(2, CompoundNameParser.countSplitPoints("PC(16:0/18:1)/PE(18:0/20:4)/PS(18:0/22:6)"));
+        assertTrue(CompoundNameParser.needsSplitting("PC(16:0/18:1)/PE(18:0/20:4)"));
+    }
+
+    @Test
+    public void strayBracketsDoNotHideTheSlashesAfterThem() {
+        assertArrayEquals(new String[] { "glucose)", "fructose" }, CompoundNameParser.split("glucose)/fructose"));
+        assertArrayEquals(new String[] { "a]]", "b" }, CompoundNameParser.split("a]]/b"));
+        assertNull(CompoundNameParser.split("PC(16:0/18:1")); //Not closed, the rest of the name is in the bracket
+        assertEquals(0, CompoundNameParser.countSplitPoints("(a/b/c"));
+        assertEquals(1, CompoundNameParser.countSplitPoints(")(a/b)/c"));
+    }
+
+    @Test
+    public void namesWithABlankPartAreNotSplit() {
+        assertNull(CompoundNameParser.split("glucose/"));
+        assertNull(CompoundNameParser.split("/glucose"));
+        assertNull(CompoundNameParser.split("glucose/ /fructose"));
+        assertNull(CompoundNameParser.split("/"));
+        assertEquals(1, CompoundNameParser.countSplitPoints("glucose/")); //Counted, but not split
+        assertFalse(CompoundNameParser.needsSplitting("glucose//fructose"));
+    }
+
+    /**
+     * Random names made of the characters the parser looks at: whatever the name, the parser does not throw, the
+     * parts joined with "/" are the name, and there is one part more than split points
+     */
+    @Test
+    public void splitPartsMakeUpTheName() {
+        char[] alphabet = { 'a', 'b', '1', ':', ' ', '-', '/', '/', '(', ')', '[', ']' };
+        Random random = new Random(42);
+        int splitNames = 0;
+
+        for (int i = 0; i < 100000; i++) {
+            char[] chars = new char[random.nextInt(24)];
+            for (int j = 0; j < chars.length; j++)
+                chars[j] = alphabet[random.nextInt(alphabet.length)];
+            String name = new String(chars);
+
+            int splitPoints = CompoundNameParser.countSplitPoints(name);
+            String[] parts = CompoundNameParser.split(name);
+            assertEquals(name, parts != null, CompoundNameParser.needsSplitting(name));
+            if (parts == null) {
+                assertTrue(name, splitPoints == 0 || hasBlankPart(name));
+                continue;
+            }
+
+            splitNames++;
+            assertEquals(name, String.join("/", parts));
+            assertEquals(name, splitPoints, parts.length - 1);
+            for (String part : parts)
+                assertFalse(name, part.trim().isEmpty());
+        }
+
+        assertTrue(splitNames > 1000); //The names are not all single compounds
+    }
+
+    private static boolean hasBlankPart(String name) {
+        for (String part : name.split("/", -1)) {
+            if (part.trim().isEmpty())
+                return true;
+        }
+        return false;
+    }
+}
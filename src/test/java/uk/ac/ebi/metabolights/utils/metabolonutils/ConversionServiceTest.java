@@ -0,0 +1,184 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.ac.ebi.chebi.webapps.chebiWS.client.ChebiWebServiceClient;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class ConversionServiceTest {
+
+    private static final String metabolonCsv =
+            ",,,,CLIENT_IDENTIFIER,C-1,C-2\r\n" +
+            ",,,,PARENT_SAMPLE_ID,PSID1,PSID2\r\n" +
+            ",,,,SAMPLE_NAME,SAMPLE_1,SAMPLE_2\r\n" +
+            ",,,,STARTING_VOLUME,100,100\r\n" +
+            "PATHWAY_SORTORDER,BIOCHEMICAL,MASS,KEGG,HMDB,Group 1,Group 2\r\n" +
+            "1,glucose,180.06,C00031,HMDB00122,1.5,2.5\r\n" +
+            "2,alanine,89.05,,,3,4\r\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubMetaboliteLookup lookup;
+    private ConversionService service;
+
+    @Before
+    public void startService() throws IOException {
+        FileUtils fileUtils = new FileUtils() {
+            private final SearchUtils offline = new SearchUtils() {
+                @Override
+                public synchronized ChebiWebServiceClient getChebiWS() {
+                    return null; //The stub lookup is used, nothing to warm up
+                }
+            };
+
+            @Override
+            public SearchUtils getSearchUtils() {
+                return offline;
+            }
+        };
+        lookup = new StubMetaboliteLookup().add("glucose", "CHEBI:17634").add("alanine", "CHEBI:16977");
+        fileUtils.setMetaboliteLookup(lookup);
+
+        service = new ConversionService(fileUtils, BatchConverter.OutputFormat.TSV, folder.newFolder("service"), 0, 1, 10);
+        service.start();
+    }
+
+    @After
+    public void stopService() {
+        service.close();
+    }
+
+    @Test
+    public void postedWorkbooksAreConverted() throws Exception {
+        String id = postJob("MyStudy.csv");
+        ConversionJob job = waitFor(id);
+        assertEquals(job.getError(), ConversionJob.Status.SUCCEEDED, job.getStatus());
+
+        Response status = request("GET", "/jobs/" + id);
+        assertEquals(200, status.code);
+        assertTrue(status.body, status.body.contains("\"status\": \"SUCCEEDED\""));
+        assertTrue(request("GET", "/jobs").body.contains("\"id\": \"" + id + "\""));
+
+        Response output = request("GET", "/jobs/" + id + "/output");
+        assertEquals(200, output.code);
+        String[] lines = output.body.split("\n");
+        assertEquals(3, lines.length); //The header and the two compounds
+        assertTrue(lines[0], lines[0].startsWith("\"database_identifier\"\t"));
+        assertTrue(lines[0], lines[0].endsWith("\t\"SAMPLE_1\"\t\"SAMPLE_2\""));
+        assertTrue(lines[1], lines[1].startsWith("\"CHEBI:17634\"\t"));
+        assertTrue(lines[2], lines[2].startsWith("\"CHEBI:16977\"\t"));
+        assertEquals(2, lookup.getLookups());
+
+        assertEquals(404, request("GET", "/jobs/unknown").code);
+        assertEquals(400, request("POST", "/jobs?name=MyStudy.pdf").code);
+    }
+
+    @Test
+    public void deletedJobsAreForgottenWithTheirFiles() throws Exception {
+        ConversionJob job = waitFor(postJob("MyStudy.csv"));
+        assertTrue(job.getInputFile().exists());
+        assertTrue(job.getOutputFile().exists());
+
+        assertEquals(200, request("DELETE", "/jobs/" + job.getId()).code);
+        assertNull(service.getJob(job.getId()));
+        assertFalse(job.getInputFile().exists());
+        assertFalse(job.getOutputFile().exists());
+        assertEquals(404, request("GET", "/jobs/" + job.getId()).code);
+        assertEquals(404, request("DELETE", "/jobs/" + job.getId()).code);
+    }
+
+    @Test
+    public void onlyTheLatestFinishedJobsAreKept() throws Exception {
+        service.setMaxJobsKept(2);
+        ConversionJob first = waitFor(postJob("First.csv"));
+        ConversionJob second = waitFor(postJob("Second.csv"));
+        ConversionJob third = waitFor(postJob("Third.csv"));
+
+        service.evictJobs();
+        assertNull(service.getJob(first.getId()));
+        assertFalse(first.getInputFile().exists());
+        assertFalse(first.getOutputFile().exists());
+        assertSame(second, service.getJob(second.getId()));
+        assertSame(third, service.getJob(third.getId()));
+        assertTrue(third.getOutputFile().exists());
+    }
+
+    @Test
+    public void finishedJobsExpire() throws Exception {
+        ConversionJob job = waitFor(postJob("MyStudy.csv"));
+        service.evictJobs();
+        assertSame(job, service.getJob(job.getId())); //Within the retention time
+
+        service.setJobRetentionMillis(0);
+        Thread.sleep(5);
+        service.evictJobs();
+        assertNull(service.getJob(job.getId()));
+        assertFalse(job.getOutputFile().exists());
+    }
+
+    /**
+     * @return the id of the job
+     */
+    private String postJob(String name) throws IOException {
+        HttpURLConnection connection = open("POST", "/jobs?name=" + name);
+        connection.setDoOutput(true);
+        try (OutputStream body = connection.getOutputStream()) {
+            body.write(metabolonCsv.getBytes(StandardCharsets.UTF_8));
+        }
+        Response response = new Response(connection);
+        assertEquals(response.body, 202, response.code);
+
+        Matcher id = Pattern.compile("\"id\": \"([^\"]+)\"").matcher(response.body);
+        assertTrue(response.body, id.find());
+        return id.group(1);
+    }
+
+    private ConversionJob waitFor(String id) throws InterruptedException {
+        ConversionJob job = service.getJob(id);
+        for (int i = 0; i < 600 && !job.isDone(); i++)
+            Thread.sleep(50);
+        assertTrue("Job " + id + " did not finish", job.isDone());
+        return job;
+    }
+
+    private Response request(String method, String path) throws IOException {
+        return new Response(open(method, path));
+    }
+
+    private HttpURLConnection open(String method, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + service.getPort() + path).openConnection();
+        connection.setRequestMethod(method);
+        return connection;
+    }
+
+    private static class Response {
+        final int code;
+        final String body;
+
+        Response(HttpURLConnection connection) throws IOException {
+            code = connection.getResponseCode();
+            InputStream stream = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            if (stream != null)
+                try (InputStream in = stream) {
+                    byte[] buffer = new byte[8192];
+                    for (int read; (read = in.read(buffer)) > 0; )
+                        bytes.write(buffer, 0, read);
+                }
+            body = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+            connection.disconnect();
+        }
+    }
+}
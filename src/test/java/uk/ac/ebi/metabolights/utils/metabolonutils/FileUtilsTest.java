@@ -0,0 +1,124 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class FileUtilsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileUtils fileUtils;
+
+    @Before
+    public void createFileUtils() {
+        fileUtils = new FileUtils();
+        fileUtils.setMetaboliteLookup(new StubMetaboliteLookup().add("glucose", "CHEBI:17634").add("alanine", "CHEBI:16977")
+                .add("fructose", "CHEBI:28757").add("PC(16:0/18:1)", "CHEBI:73001"));
+        fileUtils.setMafParallelism(1); //No materializer threads left behind by the tests
+    }
+
+    /**
+     * metabolon_small_maf.tsv was written by the converter from before the columns were found by name, with the
+     * fixed Metabolon and MAF column positions, from the same sheet saved as a workbook
+     */
+    @Test
+    public void mafMatchesTheGoldenOutput() throws Exception {
+        assertEquals(readGolden("metabolon_small_maf.tsv"), convert("metabolon_small.csv"));
+    }
+
+    @Test
+    public void compoundColumnsAreFoundInAnyOrder() throws Exception {
+        assertEquals(readGolden("metabolon_small_maf.tsv"), convert("metabolon_small_reordered.csv"));
+    }
+
+    @Test
+    public void valuesGoToTheirMafColumns() throws Exception {
+        List<String> lines = convert("metabolon_small.csv");
+        assertTrue(lines.get(0), lines.get(0).startsWith("\"database_identifier\"\t\"chemical_formula\"\t\"smiles\"\t\"inchi\"\t"
+                + "\"metabolite_identification\"\t\"mass_to_charge\"\t"));
+
+        String[] glucose = lines.get(1).split("\t");
+        assertEquals("\"CHEBI:17634\"", glucose[0]);
+        assertEquals("\"glucose\"", glucose[4]);
+        assertEquals("\"180.0634\"", glucose[5]);
+        assertEquals("\"1.5\"", glucose[glucose.length - 3]);
+    }
+
+    /**
+     * One MAF per assay configuration, from one conversion that is reported and journaled under the first MAF
+     */
+    @Test
+    public void assayConfigurationsAreReportedUnderTheFirstMaf() throws Exception {
+        fileUtils.addMetricsSink(new JsonReportSink(null));
+        fileUtils.setCheckpointing(true);
+        File copy = new File(folder.getRoot(), "configuration_copy.xml");
+        Files.copy(new File(fileUtils.getConfigurationFile()).toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        File msFile = new File(folder.getRoot(), "metabolon_small_ms_maf.tsv");
+        File copyFile = new File(folder.getRoot(), "metabolon_small_copy_maf.tsv");
+        Map<String, String> outputFileNames = new LinkedHashMap<>();
+        outputFileNames.put(fileUtils.getConfigurationFile(), msFile.getPath());
+        outputFileNames.put(copy.getPath(), copyFile.getPath());
+        fileUtils.convertToTsv(getFixture("metabolon_small.csv").getPath(), outputFileNames);
+
+        assertEquals(readGolden("metabolon_small_maf.tsv"), Files.readAllLines(msFile.toPath(), StandardCharsets.UTF_8));
+        assertEquals(readGolden("metabolon_small_maf.tsv"), Files.readAllLines(copyFile.toPath(), StandardCharsets.UTF_8));
+
+        File reportFile = new File(folder.getRoot(), msFile.getName() + ".report.json");
+        assertTrue(reportFile.exists());
+        String report = new String(Files.readAllBytes(reportFile.toPath()), StandardCharsets.UTF_8);
+        assertTrue(report, report.contains("\"outputFile\": " + ConversionMetrics.jsonString(msFile.getPath())));
+        assertFalse(ConversionJournal.getJournalFile(msFile).exists()); //Deleted once both MAF files are written
+    }
+
+    /**
+     * The columnar export is written when its sink is closed, after all the compounds are resolved and journaled
+     */
+    @Test
+    public void journalIsKeptWhenAnOutputCanNotBeWritten() throws Exception {
+        fileUtils.setCheckpointing(true);
+        fileUtils.setWriteColumnarExport(true);
+        File outputFile = new File(folder.getRoot(), "metabolon_small_maf.tsv");
+        assertTrue(ColumnarMafSink.getColumnarFile(outputFile).mkdir()); //Can not be opened as a file
+        try {
+            fileUtils.convertToTsv(getFixture("metabolon_small.csv").getPath(), outputFile.getPath());
+            fail("The columnar export can not be written");
+        } catch (IOException e) {
+            assertTrue(ConversionJournal.getJournalFile(outputFile).exists()); //The compounds can be replayed
+        }
+
+        assertTrue(ColumnarMafSink.getColumnarFile(outputFile).delete());
+        fileUtils.setResume(true);
+        fileUtils.convertToTsv(getFixture("metabolon_small.csv").getPath(), outputFile.getPath());
+        assertEquals(readGolden("metabolon_small_maf.tsv"), Files.readAllLines(outputFile.toPath(), StandardCharsets.UTF_8));
+        assertFalse(ConversionJournal.getJournalFile(outputFile).exists());
+    }
+
+    private List<String> convert(String fixture) throws Exception {
+        File outputFile = new File(folder.getRoot(), fixture.replace(".csv", "_maf.tsv"));
+        fileUtils.convertToTsv(getFixture(fixture).getPath(), outputFile.getPath());
+        return Files.readAllLines(outputFile.toPath(), StandardCharsets.UTF_8);
+    }
+
+    private List<String> readGolden(String fixture) throws Exception {
+        return Files.readAllLines(getFixture(fixture).toPath(), StandardCharsets.UTF_8);
+    }
+
+    private File getFixture(String fixture) throws Exception {
+        return new File(getClass().getResource("/golden/" + fixture).toURI());
+    }
+}
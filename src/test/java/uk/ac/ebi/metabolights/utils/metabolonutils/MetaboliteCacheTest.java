@@ -0,0 +1,163 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.isatools.plugins.metabolights.assignments.model.Metabolite;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MetaboliteCacheTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final LookupKey glucose = new LookupKey("HMDB0000122", "D-Glucose");
+    private final LookupKey unknown = new LookupKey(null, "X - 12345");
+    private StubMetaboliteLookup lookup;
+    private File cacheFile;
+
+    @Before
+    public void setUp() throws IOException {
+        lookup = new StubMetaboliteLookup().add("D-Glucose", "CHEBI:17634");
+        cacheFile = new File(folder.getRoot(), "metabolite_cache.tsv");
+    }
+
+    @Test
+    public void resolvesEveryCompoundOnce() throws IOException {
+        try (MetaboliteCache cache = new MetaboliteCache(lookup, cacheFile)) {
+            assertEquals("CHEBI:17634", cache.resolve(glucose).getIdentifier());
+            assertEquals("CHEBI:17634", cache.resolve(new LookupKey("hmdb0000122", " d-glucose ")).getIdentifier());
+
+            assertEquals(1, lookup.getLookups());
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, cache.getHits());
+        }
+    }
+
+    @Test
+    public void resolveAllOnlyLooksUpTheMissingCompounds() throws IOException {
+        try (MetaboliteCache cache = new MetaboliteCache(lookup, cacheFile)) {
+            cache.resolve(glucose);
+            Map<LookupKey, Metabolite> resolved = cache.resolveAll(Arrays.asList(glucose, unknown, unknown));
+
+            assertEquals(2, resolved.size());
+            assertEquals("CHEBI:17634", resolved.get(glucose).getIdentifier());
+            assertNull(resolved.get(unknown).getIdentifier());
+            assertEquals(2, lookup.getLookups());
+        }
+    }
+
+    @Test
+    public void expiredCompoundsAreLookedUpAgain() throws IOException {
+        try (MetaboliteCache cache = new MetaboliteCache(lookup, cacheFile, -1, DAY, 100)) {
+            cache.resolve(glucose);
+            cache.resolve(glucose);
+
+            assertEquals(2, lookup.getLookups());
+            assertEquals(1, cache.getExpired());
+        }
+    }
+
+    @Test
+    public void unresolvedCompoundsExpireWithTheNegativeTtl() throws IOException {
+        try (MetaboliteCache cache = new MetaboliteCache(lookup, cacheFile, DAY, -1, 100)) {
+            cache.resolve(glucose);
+            cache.resolve(glucose);
+            cache.resolve(unknown);
+            cache.resolve(unknown);
+
+            assertEquals(3, lookup.getLookups()); //Glucose once, the unknown compound twice
+            assertEquals(1, cache.getExpired());
+        }
+    }
+
+    @Test
+    public void compoundsAreReloadedAfterARestart() throws IOException {
+        try (MetaboliteCache cache = new MetaboliteCache(lookup, cacheFile)) {
+            cache.resolveAll(Arrays.asList(glucose, unknown));
+        }
+
+        lookup.setFailing(true); //Everything has to come from the cache file
+        try (MetaboliteCache cache = new MetaboliteCache(lookup, cacheFile)) {
+            assertEquals(2, cache.size());
+            Metabolite met = cache.resolve(glucose);
+            assertEquals("CHEBI:17634", met.getIdentifier());
+            assertEquals(StubMetaboliteLookup.metabolite("CHEBI:17634").getInchi(), met.getInchi());
+            assertNull(cache.resolve(unknown).getIdentifier());
+            assertEquals(1, cache.getNegativeHits());
+        }
+        assertEquals(2, lookup.getLookups());
+    }
+
+    @Test
+    public void expiredCompoundsAreNotReloaded() throws IOException {
+        try (MetaboliteCache cache = new MetaboliteCache(lookup, cacheFile)) {
+            cache.resolveAll(Arrays.asList(glucose, unknown));
+        }
+
+        try (MetaboliteCache cache = new MetaboliteCache(lookup, cacheFile, DAY, -1, 100)) {
+            assertEquals(1, cache.size());
+        }
+        try (MetaboliteCache cache = new MetaboliteCache(lookup, cacheFile, -1, -1, 100)) {
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void closeCompactsTheCacheFile() throws IOException {
+        try (MetaboliteCache cache = new MetaboliteCache(lookup, cacheFile, DAY, -1, 100)) {
+            cache.resolve(unknown);
+            cache.resolve(unknown);
+            cache.resolve(unknown);
+            assertEquals(3, readLines().length); //Every lookup is appended
+        }
+
+        assertEquals(1, readLines().length);
+    }
+
+    @Test
+    public void loadingCompactsAFileOfReplacedLines() throws IOException {
+        long now = System.currentTimeMillis();
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 5; i++)
+            lines.append(now - i).append("\tHMDB0000122\td-glucose\tCHEBI:").append(i).append("\t\\N\t\\N\t\\N\n");
+        lines.append(now).append("\t\\N\tx - 1"); //Cut short when the JVM died
+        Files.write(cacheFile.toPath(), lines.toString().getBytes(StandardCharsets.UTF_8));
+
+        try (MetaboliteCache cache = new MetaboliteCache(lookup, cacheFile)) {
+            assertEquals(1, cache.size());
+            assertEquals(1, readLines().length);
+            assertEquals("CHEBI:4", cache.resolve(glucose).getIdentifier()); //The last line wins
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedCompoundsAreEvicted() throws IOException {
+        try (MetaboliteCache cache = new MetaboliteCache(lookup, cacheFile, DAY, DAY, 2)) {
+            cache.resolve(glucose);
+            cache.resolve(unknown);
+            cache.resolve(glucose);
+            cache.resolve(new LookupKey(null, "Another compound"));
+
+            assertEquals(2, cache.size());
+            assertEquals(1, cache.getEvictions());
+            cache.resolve(glucose);
+            assertEquals(3, lookup.getLookups()); //Glucose was used last, so the unknown compound was evicted
+        }
+    }
+
+    private String[] readLines() throws IOException {
+        return Files.readAllLines(cacheFile.toPath(), StandardCharsets.UTF_8).toArray(new String[0]);
+    }
+}
@@ -0,0 +1,73 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.isatools.plugins.metabolights.assignments.model.Metabolite;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetaboliteResolutionStageTest {
+
+    private StubMetaboliteLookup lookup;
+    private List<LookupKey> keys;
+
+    @Before
+    public void setUp() {
+        lookup = new StubMetaboliteLookup();
+        keys = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            if (i % 2 == 0)
+                lookup.add("compound " + i, "CHEBI:" + i); //Every other compound is unknown
+            keys.add(new LookupKey(i % 3 == 0 ? "HMDB" + i : null, "compound " + i));
+        }
+        keys.addAll(keys.subList(0, 50)); //Repeated compounds
+    }
+
+    @Test
+    public void concurrentStageGivesTheSameResultAsTheSequentialOne() {
+        Map<LookupKey, Metabolite> sequential = new MetaboliteResolutionStage(lookup, 1, 0, 7).resolveAll(keys);
+        int sequentialLookups = lookup.getLookups();
+        Map<LookupKey, Metabolite> concurrent = new MetaboliteResolutionStage(lookup, 8, 2000, 7).resolveAll(keys);
+
+        assertEquals(200, sequential.size());
+        assertEquals(getIdentifiers(sequential), getIdentifiers(concurrent));
+        assertEquals("CHEBI:4", concurrent.get(new LookupKey(null, "Compound 4")).getIdentifier());
+        assertNull(concurrent.get(new LookupKey(null, "compound 5")).getIdentifier());
+        assertEquals(sequentialLookups, lookup.getLookups() - sequentialLookups);
+    }
+
+    @Test
+    public void everyDistinctCompoundIsLookedUpOnce() {
+        new MetaboliteResolutionStage(lookup, 4, 0, 10).resolveAll(keys);
+        assertEquals(200, lookup.getLookups());
+    }
+
+    @Test
+    public void batchesAreStartedAtTheRequestedRate() {
+        long start = System.nanoTime();
+        new MetaboliteResolutionStage(lookup, 8, 100, 20).resolveAll(keys); //10 batches, one every 10 ms
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("10 batches at 100 per second took " + elapsedMillis + " ms", elapsedMillis >= 85);
+    }
+
+    @Test
+    public void compoundsOfAFailedLookupAreLeftUnresolved() {
+        lookup.setFailing(true);
+        ConversionMetrics metrics = new ConversionMetrics("in.xlsx", "out.tsv");
+        Map<LookupKey, Metabolite> resolved = new MetaboliteResolutionStage(lookup, 4, 0, 25).resolveAll(keys, metrics);
+
+        assertEquals(200, resolved.size());
+        assertTrue(resolved.values().stream().allMatch(Objects::isNull));
+        assertEquals(200, metrics.getCounter(ConversionMetrics.LOOKUP_FAILURES));
+    }
+
+    private static Map<LookupKey, String> getIdentifiers(Map<LookupKey, Metabolite> resolved) {
+        Map<LookupKey, String> identifiers = new HashMap<>();
+        resolved.forEach((key, met) -> identifiers.put(key, met != null ? met.getIdentifier() : null));
+        return identifiers;
+    }
+}
@@ -0,0 +1,154 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.isatools.plugins.metabolights.assignments.model.Metabolite;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.ac.ebi.chebi.webapps.chebiWS.model.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SearchUtilsTest {
+
+    private final LookupKey glucose = new LookupKey("HMDB00122", "D-Glucose");             //HMDB id known to ChEBI
+    private final LookupKey alanine = new LookupKey("HMDB9999999", "alanine");             //Only the name is known
+    private final LookupKey keggCompound = new LookupKey("C00031", "not in ChEBI");        //Not a ChEBI id
+    private final LookupKey unknown = new LookupKey(null, "X - 12345");
+    private final List<LookupKey> keys = Arrays.asList(glucose, alanine, keggCompound, unknown);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void resolveGivesTheSameFieldsAsResolveAll() {
+        Map<LookupKey, Metabolite> batch = new StubSearchUtils().resolveAll(keys);
+
+        for (LookupKey key : keys) {
+            Metabolite single = new StubSearchUtils().resolve(key);
+            Metabolite batched = batch.get(key);
+            assertEquals(key.toString(), batched.getIdentifier(), single.getIdentifier());
+            assertEquals(key.toString(), batched.getFormula(), single.getFormula());
+            assertEquals(key.toString(), batched.getSmiles(), single.getSmiles());
+            assertEquals(key.toString(), batched.getInchi(), single.getInchi());
+        }
+    }
+
+    @Test
+    public void compoundsAreResolvedByIdThenByName() {
+        Map<LookupKey, Metabolite> resolved = new StubSearchUtils().resolveAll(keys);
+
+        assertEquals("CHEBI:17634", resolved.get(glucose).getIdentifier());
+        assertEquals("C6H12O6", resolved.get(glucose).getFormula()); //The first formula
+        assertEquals("CHEBI:16977", resolved.get(alanine).getIdentifier());
+        assertEquals("C00031", resolved.get(keggCompound).getIdentifier());
+        assertEquals("KEGG formula", resolved.get(keggCompound).getFormula());
+        assertNull(resolved.get(unknown).getIdentifier());
+    }
+
+    /**
+     * A ChEBI fault is a failed call, not an unknown compound: it is retried, the compounds are left unresolved and
+     * nothing is cached for them, so they are resolved once ChEBI is back
+     */
+    @Test
+    public void faultsAreRetriedAndNotCached() throws IOException {
+        StubSearchUtils searchUtils = new StubSearchUtils();
+        searchUtils.faulting = true;
+        ResilientMetaboliteLookup resilientLookup = new ResilientMetaboliteLookup(searchUtils, 5000, 2, 1, 5, 60000);
+        MetaboliteCache cache = new MetaboliteCache(resilientLookup, new File(folder.getRoot(), "metabolite_cache.tsv"));
+
+        try {
+            cache.resolveAll(Collections.singletonList(glucose));
+            fail("A ChEBI fault must not be taken for an unknown compound");
+        } catch (ResilientMetaboliteLookup.LookupUnavailableException e) {
+            assertTrue(e.getCause() instanceof SearchUtils.ChebiFaultException);
+        }
+        assertEquals(2, searchUtils.chebiCalls.get()); //Tried again
+        assertEquals(Collections.singleton(glucose), resilientLookup.getUnresolved());
+        assertEquals(0, cache.size());
+
+        searchUtils.faulting = false;
+        assertEquals("CHEBI:17634", cache.resolve(glucose).getIdentifier());
+        assertTrue(resilientLookup.getUnresolved().isEmpty());
+        assertEquals(1, cache.size());
+        resilientLookup.close();
+    }
+
+    /**
+     * Answers the ChEBI and MetaboLights requests from fixed data instead of the web services
+     */
+    static class StubSearchUtils extends SearchUtils {
+
+        final Map<String, String> externalIds = new HashMap<>();
+        final Map<String, String> names = new HashMap<>();
+        final Map<String, Entity> entities = new HashMap<>();
+        final Map<String, Metabolite> metaboLightsMetabolites = new HashMap<>();
+        final AtomicInteger chebiCalls = new AtomicInteger();
+        volatile boolean faulting = false; //Answer every ChEBI call with a fault, as when ChEBI is down
+
+        StubSearchUtils() {
+            externalIds.put("HMDB0000122", "CHEBI:17634");
+            names.put("d-glucose", "CHEBI:17634");
+            names.put("alanine", "CHEBI:16977");
+            entities.put("CHEBI:17634", entity("CHEBI:17634", "OC[C@H]1OC(O)", "InChI=1S/C6H12O6", "C6H12O6", "C6H12O6 (open)"));
+            entities.put("CHEBI:16977", entity("CHEBI:16977", "C[C@H](N)C(O)=O", "InChI=1S/C3H7NO2", "C3H7NO2"));
+
+            Metabolite kegg = new Metabolite();
+            kegg.setIdentifier("C00031");
+            kegg.setFormula("KEGG formula");
+            metaboLightsMetabolites.put("C00031", kegg);
+        }
+
+        @Override
+        LiteEntityList getChebiEntity(String searchTerm, String dataType) throws ChebiWebServiceFault_Exception {
+            checkFault();
+            String chebiId = dataType.equals("externalId") ? externalIds.get(searchTerm) : names.get(LookupKey.normaliseName(searchTerm));
+            LiteEntityList liteEntityList = new LiteEntityList();
+            if (chebiId != null) {
+                LiteEntity liteEntity = new LiteEntity();
+                liteEntity.setChebiId(chebiId);
+                liteEntityList.getListElement().add(liteEntity);
+            }
+            return liteEntityList;
+        }
+
+        @Override
+        List<Entity> getCompleteEntities(List<String> chebiIds) throws ChebiWebServiceFault_Exception {
+            checkFault();
+            List<Entity> found = new ArrayList<>();
+            for (String chebiId : chebiIds) {
+                if (entities.containsKey(chebiId))
+                    found.add(entities.get(chebiId));
+            }
+            return found;
+        }
+
+        @Override
+        Metabolite getMetaboLightsMetabolite(String identifier) {
+            return metaboLightsMetabolites.get(identifier);
+        }
+
+        private void checkFault() throws ChebiWebServiceFault_Exception {
+            chebiCalls.incrementAndGet();
+            if (faulting)
+                throw new ChebiWebServiceFault_Exception("Service unavailable", new ChebiWebServiceFault());
+        }
+
+        private static Entity entity(String chebiId, String smiles, String inchi, String... formulae) {
+            Entity entity = new Entity();
+            entity.setChebiId(chebiId);
+            entity.setSmiles(smiles);
+            entity.setInchi(inchi);
+            for (String formula : formulae) {
+                DataItem dataItem = new DataItem();
+                dataItem.setData(formula);
+                entity.getFormulae().add(dataItem);
+            }
+            return entity;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package uk.ac.ebi.metabolights.utils.metabolonutils;
+
+import org.isatools.plugins.metabolights.assignments.model.Metabolite;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A MetaboliteLookup for the tests, standing in for the web services: resolves the compound names it was given,
+ * counts the compounds it is asked for and can be made to fail like a service that is down.
+ */
+class StubMetaboliteLookup implements MetaboliteLookup {
+
+    private final Map<String, String> identifiers = new ConcurrentHashMap<>();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private volatile boolean failing = false;
+
+    /**
+     * @param name, the compound name, resolved whatever the database id
+     * @param identifier, e.g. "CHEBI:17234"
+     */
+    StubMetaboliteLookup add(String name, String identifier) {
+        identifiers.put(LookupKey.normaliseName(name), identifier);
+        return this;
+    }
+
+    /**
+     * @param failing, throw on every lookup, as SearchUtils does when ChEBI is down
+     */
+    void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    /**
+     * @return the number of compounds looked up
+     */
+    int getLookups() {
+        return lookups.get();
+    }
+
+    @Override
+    public Metabolite resolve(LookupKey key) {
+        lookups.incrementAndGet();
+        if (failing)
+            throw new IllegalStateException("The stub web service is down");
+
+        String identifier = key.getNormalisedName() != null ? identifiers.get(key.getNormalisedName()) : null;
+        return identifier != null ? metabolite(identifier) : new Metabolite();
+    }
+
+    /**
+     * @return the Metabolite the stub resolves to for the identifier
+     */
+    static Metabolite metabolite(String identifier) {
+        Metabolite met = new Metabolite();
+        met.setIdentifier(identifier);
+        met.setFormula("C6H12O6-" + identifier);
+        met.setSmiles("OC1OC(CO)-" + identifier);
+        met.setInchi("InChI=1S/" + identifier);
+        return met;
+    }
+}